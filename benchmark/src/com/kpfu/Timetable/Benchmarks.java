@@ -0,0 +1,232 @@
+package com.kpfu.Timetable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Замеры скорости основных операций расписания.
+ * <br>Каждый замер сначала прогревается, затем выполняется несколько серий; печатается среднее время
+ * одной операции и разброс между сериями. Результаты операций копятся в sink, чтобы JIT не выбросил вызовы.
+ * <br>Запуск: ant -f benchmark/build.xml (необязательный аргумент - подстрока в имени замера).
+ */
+class Benchmarks {
+
+    private static final int WARMUP = 5; // серий на прогрев
+    private static final int MEASURE = 10; // серий на замер
+    private static final long ITERATION_NANOS = 100 * 1000 * 1000L; // длительность серии
+
+    static volatile long sink;
+
+    /**
+     * Один замер
+     */
+    abstract static class Case {
+        final String name;
+
+        Case(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Выполняет операцию ops раз
+         * @return Что-нибудь, зависящее от результатов (для sink)
+         */
+        abstract long run(int ops) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        System.out.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                + ", " + Runtime.getRuntime().availableProcessors() + " cpu");
+        System.out.println(String.format(Locale.US, "%-36s %12s %10s", "benchmark", "ns/op", "+- ns/op"));
+        for (Case c : cases())
+            if (c.name.contains(filter)) report(c);
+    }
+
+    static List<Case> cases() throws IOException {
+        ArrayList<Case> result = new ArrayList<Case>();
+        final Timetable realistic = new TimetableGenerator(1).realistic();
+        final Timetable oversized = new TimetableGenerator(2).oversized();
+
+        final Calendar[] semester = new Calendar[182];
+        for (int i = 0; i < semester.length; i++)
+            semester[i] = Dates.toCalendar(realistic.firstDay + i);
+        result.add(new Case("getLessons(Calendar)") {
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += realistic.getLessons(semester[i % semester.length]).length;
+                return sum;
+            }
+        });
+        result.add(new Case("getLessons(int)") {
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += realistic.getLessons(i % 14 + 1).length;
+                return sum;
+            }
+        });
+        result.add(new Case("getLessons(Calendar) oversized") {
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += oversized.getLessons(semester[i % semester.length]).length;
+                return sum;
+            }
+        });
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "timetable-bench");
+        dir.mkdirs();
+        final String realisticFile = new File(dir, "realistic").getPath();
+        final String oversizedFile = new File(dir, "oversized").getPath();
+        final String textFile = new File(dir, "legacy.txt").getPath();
+        // Файлы для loadFrom пишутся заранее: замеры загрузки не должны зависеть от того, запускались ли замеры сохранения
+        if (!realistic.copy().saveAs(realisticFile) || !oversized.copy().saveAs(oversizedFile))
+            throw new IOException("Cannot write benchmark files to " + dir);
+        result.add(new Case("saveAs realistic") {
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    if (realistic.copy().saveAs(realisticFile)) sum++;
+                return sum;
+            }
+        });
+        result.add(new Case("saveAs oversized") {
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    if (oversized.copy().saveAs(oversizedFile)) sum++;
+                return sum;
+            }
+        });
+        result.add(new Case("loadFrom realistic") {
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += Timetable.loadFrom(realisticFile).firstDay;
+                return sum;
+            }
+        });
+        result.add(new Case("loadFrom oversized") {
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += Timetable.loadFrom(oversizedFile).firstDay;
+                return sum;
+            }
+        });
+        final int shownDay = oversized.firstDay + 364; // холодный запуск: открыть файл и показать один день
+        result.add(new Case("loadFrom oversized + one day") {
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += Timetable.loadFrom(oversizedFile).getLessons(Dates.toCalendar(shownDay)).length;
+                return sum;
+            }
+        });
+        TimetableGenerator.writeText(realistic, new File(textFile), CharsetSniffer.CP1251);
+        result.add(new Case("loadFrom legacy text CP1251") {
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += Timetable.loadFrom(textFile).firstDay;
+                return sum;
+            }
+        });
+
+        TimetableGenerator generator = new TimetableGenerator(3);
+        final Lesson[] lessons = new Lesson[64];
+        for (int i = 0; i < lessons.length; i++)
+            lessons[i] = generator.lesson(i % 2 == 0 ? 0 : 200);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStreamWriter writer = new OutputStreamWriter(bytes, "UTF-8");
+        for (Lesson lesson : lessons) {
+            lesson.write(writer);
+            writer.append((char)30);
+        }
+        writer.close();
+        final String text = bytes.toString("UTF-8");
+        result.add(new Case("Lesson.write") {
+            long run(int ops) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                OutputStreamWriter stream = new OutputStreamWriter(out, "UTF-8");
+                for (int i = 0; i < ops; i++) {
+                    if (i % lessons.length == 0) out.reset();
+                    lessons[i % lessons.length].write(stream);
+                }
+                stream.flush();
+                return out.size();
+            }
+        });
+        result.add(new Case("Lesson.read") {
+            long run(int ops) throws IOException {
+                long sum = 0;
+                Reader in = new StringReader(text);
+                for (int i = 0; i < ops; i++) {
+                    if (i % lessons.length == 0) in = new StringReader(text);
+                    sum += Lesson.read(in, (char)30).hashCode();
+                }
+                return sum;
+            }
+        });
+        result.add(new Case("Lesson.fixEncoding") {
+            long run(int ops) throws IOException {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    Lesson lesson = lessons[i % lessons.length].copy();
+                    lesson.fixEncoding("UTF-8");
+                    sum += lesson.fullName.length();
+                }
+                return sum;
+            }
+        });
+        result.add(new Case("Timetable.fixEncoding realistic") {
+            long run(int ops) throws IOException {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    Timetable timetable = realistic.copy();
+                    timetable.fixEncoding("UTF-8");
+                    sum += timetable.lessons.length;
+                }
+                return sum;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Прогревает и замеряет один случай, печатает строку результата
+     */
+    static void report(Case c) throws Exception {
+        int ops = 1;
+        while (true) { // подбираем число операций на серию
+            long start = System.nanoTime();
+            sink += c.run(ops);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= ITERATION_NANOS / 10 || ops >= 1 << 28) {
+                ops = (int)Math.max(1, Math.min(1L << 28, ops * ITERATION_NANOS / Math.max(1, elapsed)));
+                break;
+            }
+            ops *= 2;
+        }
+        for (int i = 0; i < WARMUP; i++)
+            sink += c.run(ops);
+        double[] perOp = new double[MEASURE];
+        for (int i = 0; i < MEASURE; i++) {
+            long start = System.nanoTime();
+            sink += c.run(ops);
+            perOp[i] = (double)(System.nanoTime() - start) / ops;
+        }
+        double mean = 0;
+        for (double value : perOp) mean += value;
+        mean /= perOp.length;
+        double variance = 0;
+        for (double value : perOp) variance += (value - mean) * (value - mean);
+        double error = Math.sqrt(variance / (perOp.length - 1));
+        System.out.println(String.format(Locale.US, "%-36s %12.1f %10.1f", c.name, mean, error));
+    }
+}
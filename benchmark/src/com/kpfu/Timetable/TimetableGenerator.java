@@ -0,0 +1,138 @@
+package com.kpfu.Timetable;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Генератор искусственных расписаний для замеров.
+ * <br>Набор предметов, преподавателей и аудиторий ограничен, как в настоящем семестре,
+ * так что уроки повторяются и проходят через LessonPool так же, как при загрузке реальных файлов.
+ */
+class TimetableGenerator {
+
+    private static final String[] SUBJECTS = {
+            "Математический анализ", "Линейная алгебра", "Дискретная математика", "Физика",
+            "Программирование", "Алгоритмы и структуры данных", "Базы данных", "Операционные системы",
+            "Компьютерные сети", "Иностранный язык", "История", "Философия", "Физическая культура",
+            "Теория вероятностей", "Дифференциальные уравнения", "Численные методы"};
+    private static final String[] TEACHERS = {
+            "Иванов И. И.", "Петров П. П.", "Сидорова А. В.", "Кузнецов Д. А.", "Смирнова Е. Н.",
+            "Васильев О. Г.", "Попова Т. С.", "Соколов Р. М.", "Михайлова Н. Ю.", "Новиков С. Л."};
+    private static final String[] BUILDINGS = {"Главное здание", "Физфак", "ВМК", "2-й корпус"};
+    private static final String[] TYPES = {"лекция", "семинар", "лабораторная"};
+
+    private final Random random;
+
+    /**
+     * Конструктор
+     * @param seed Зерно: одно и то же зерно даёт одно и то же расписание
+     */
+    TimetableGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Обычное расписание группы: двухнедельная сетка по 3-5 пар в день и несколько праздников
+     * @return Расписание
+     */
+    Timetable realistic() {
+        return generate(true, 3, 5, 10, 0);
+    }
+
+    /**
+     * Расписание сверх всякой меры: заполненная сетка, тысячи особых дней и длинные комментарии
+     * @return Расписание
+     */
+    Timetable oversized() {
+        return generate(true, Timetable.MAX_PER_DAY, Timetable.MAX_PER_DAY, 2000, 300);
+    }
+
+    /**
+     * Создаёт расписание
+     * @param doubleWeek Двухнедельное ли расписание
+     * @param minPerDay Наименьшее число уроков в учебный день
+     * @param maxPerDay Наибольшее число уроков в учебный день
+     * @param specialDays Сколько особых дней добавить (после первого дня, подряд через один)
+     * @param commentLength Длина комментария у каждого урока (0 - без комментария)
+     * @return Расписание
+     */
+    Timetable generate(boolean doubleWeek, int minPerDay, int maxPerDay, int specialDays, int commentLength) {
+        Timetable result = new Timetable(doubleWeek, Dates.toCalendar(Dates.epochDay(2026, 8, 1)));
+        int rows = doubleWeek ? 14 : 7;
+        for (int row = 1; row <= rows; row++) {
+            if (row % 7 == 0) continue; // воскресенье
+            Lesson[] day = new Lesson[Timetable.MAX_PER_DAY];
+            int count = minPerDay + random.nextInt(maxPerDay - minPerDay + 1);
+            for (int slot = 0; slot < count; slot++)
+                day[slot] = lesson(commentLength);
+            result.setLessons(day, row);
+        }
+        for (int i = 0; i < specialDays; i++) {
+            Lesson[] day = new Lesson[Timetable.MAX_PER_DAY];
+            if (random.nextInt(4) != 0) // каждый четвёртый - праздник без уроков
+                for (int slot = 0; slot < minPerDay; slot++)
+                    day[slot] = lesson(commentLength);
+            result.putSpecialDay(result.firstDay + 2 * i + 1, day);
+        }
+        return result;
+    }
+
+    /**
+     * @param commentLength Длина комментария (0 - без комментария)
+     * @return Случайный урок
+     */
+    Lesson lesson(int commentLength) {
+        int subject = random.nextInt(SUBJECTS.length);
+        String comment = null;
+        if (commentLength > 0) {
+            StringBuilder text = new StringBuilder(commentLength);
+            while (text.length() < commentLength)
+                text.append(SUBJECTS[random.nextInt(SUBJECTS.length)]).append(". ");
+            text.setLength(commentLength);
+            comment = text.toString();
+        }
+        return new Lesson(SUBJECTS[subject], SUBJECTS[subject].substring(0, 4),
+                BUILDINGS[random.nextInt(BUILDINGS.length)], Integer.toString(100 + random.nextInt(400)),
+                TEACHERS[random.nextInt(TEACHERS.length)], TYPES[random.nextInt(TYPES.length)], comment);
+    }
+
+    /**
+     * Записывает расписание в старом текстовом формате (его читает Timetable.loadFrom)
+     * @param timetable Расписание
+     * @param file Файл
+     * @param charset Кодировка
+     * @throws IOException Ошибка ввода/вывода
+     */
+    static void writeText(Timetable timetable, File file, Charset charset) throws IOException {
+        final char split = (char)30;
+        OutputStreamWriter out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file)), charset);
+        try {
+            out.append(timetable.doubleWeek ? '1' : '0').append(split);
+            writeDate(out, timetable.firstDay, split);
+            for (Lesson[] day : timetable.lessons)
+                for (int slot = 0; slot < Timetable.MAX_PER_DAY; slot++) {
+                    if (day != null && day[slot] != null) day[slot].write(out);
+                    out.append(split);
+                }
+            DayMap specialDays = timetable.specialDays;
+            for (int i = 0; i < specialDays.capacity(); i++)
+                if (specialDays.isUsed(i)) {
+                    writeDate(out, specialDays.keyAt(i), split);
+                    Lesson[] day = specialDays.valueAt(i);
+                    for (int slot = 0; slot < Timetable.MAX_PER_DAY; slot++) {
+                        if (day[slot] != null) day[slot].write(out);
+                        out.append(split);
+                    }
+                }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeDate(Writer out, int day, char split) throws IOException {
+        out.append(Integer.toString(Dates.dayOfMonth(day))).append(split)
+                .append(Integer.toString(Dates.month(day))).append(split)
+                .append(Integer.toString(Dates.year(day))).append(split);
+    }
+}
@@ -0,0 +1,58 @@
+package com.kpfu.Timetable;
+
+/**
+ * Расписание звонков: время начала и конца каждого урока (пары) в минутах от полуночи
+ */
+class BellSchedule {
+
+    /** Звонки КФУ: пары по 90 минут */
+    static final BellSchedule KFU = new BellSchedule(
+            new int[] {8 * 60 + 30, 10 * 60 + 10, 11 * 60 + 50, 13 * 60 + 35, 15 * 60 + 15, 16 * 60 + 55, 18 * 60 + 35, 20 * 60 + 15},
+            new int[] {10 * 60, 11 * 60 + 40, 13 * 60 + 20, 15 * 60 + 5, 16 * 60 + 45, 18 * 60 + 25, 20 * 60 + 5, 21 * 60 + 45});
+
+    private final int[] starts; // по номеру урока (с нуля), по возрастанию
+    private final int[] ends;
+
+    /**
+     * Конструктор
+     * @param starts Начала уроков в минутах от полуночи, по возрастанию
+     * @param ends Концы уроков, в том же порядке
+     */
+    BellSchedule(int[] starts, int[] ends) {
+        if (starts.length != ends.length) throw new IllegalArgumentException("starts and ends differ in length");
+        this.starts = starts.clone();
+        this.ends = ends.clone();
+    }
+
+    /** @return Для скольких уроков известно время */
+    int size() {
+        return starts.length;
+    }
+
+    /**
+     * @param slot Номер урока в дне (с нуля)
+     * @return Известно ли время этого урока?
+     */
+    boolean has(int slot) {
+        return slot >= 0 && slot < starts.length;
+    }
+
+    /** @return Начало урока в минутах от полуночи */
+    int start(int slot) {
+        return starts[slot];
+    }
+
+    /** @return Конец урока в минутах от полуночи */
+    int end(int slot) {
+        return ends[slot];
+    }
+
+    /**
+     * @param minutes Минуты от полуночи
+     * @return Время вида "8:30"
+     */
+    static String format(int minutes) {
+        int m = minutes % 60;
+        return minutes / 60 + (m < 10 ? ":0" : ":") + m;
+    }
+}
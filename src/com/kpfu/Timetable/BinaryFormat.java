@@ -0,0 +1,396 @@
+package com.kpfu.Timetable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Двоичный формат файла расписания. Читается через отображение файла в память.
+ * <pre>
+ * Заголовок (28 байт):
+ *   int   MAGIC ("KTTB")
+ *   short версия формата
+ *   byte  флаги (бит 0 - двухнедельное расписание)
+ *   byte  резерв
+ *   short год, byte месяц, byte число (первый день)
+ *   int   количество строк
+ *   int   количество уроков
+ *   int   количество дней недели в сетке
+ *   int   количество особых дней
+ * Версия 5:
+ *   Индекс: int смещения таблицы уроков, сетки и каталога блоков (от начала заголовка), int количество блоков
+ *   Таблица строк: количество строк + 1 int - смещения от начала данных строк, затем сами строки в UTF-8 подряд
+ *   Таблица уроков, сетка, правила замены - как в версии 4
+ *   Каталог блоков: для каждого блока int первый эпохальный день, int смещение, int длина, int CRC32 блока
+ *   Контрольная сумма: int CRC32 всех предыдущих байт файла
+ *   Блоки особых дней: по BLOCK_DAYS дней по возрастанию даты; день - short год, byte месяц, byte число, затем день
+ * Версии 1-4:
+ *   Таблица строк: для каждой строки int длина в байтах, затем байты в UTF-8
+ *   Таблица уроков: для каждого урока Lesson.FIELDS номеров строк (int, -1 - null)
+ *   Сетка: для каждого дня недели - день (см. ниже)
+ *   Особые дни: short год, byte месяц, byte число, затем день
+ *   Правила замены (с версии 3): short количество, затем правила (см. OverrideRule.write)
+ *   Контрольная сумма (с версии 4): int CRC32 всех предыдущих байт файла
+ * День (с версии 2): short маска занятых ячеек (бит i - урок i), затем номера уроков (int) только занятых ячеек
+ * День (версия 1): MAX_PER_DAY номеров уроков (int, -1 - нет урока)
+ * </pre>
+ * Маска с упакованными уроками - только в файле. В памяти день остаётся массивом из MAX_PER_DAY ячеек
+ * по номеру урока; экономия там - за счёт общих дней (см. LessonPool), а не за счёт их размера.
+ * Все числа в big-endian. Пишется версия 5, читаются все.
+ * <br>Версии 1-4 читаются целиком. Контрольная сумма считается при чтении по частям, сразу за разбором каждого раздела,
+ * пока его байты ещё в кэше; несовпадение - то же, что повреждённый файл.
+ * <br>В версии 5 при открытии читаются только индекс, сетка и правила; строки и уроки разбираются по номеру,
+ * когда понадобятся, а особые дни - блоками по датам (см. DayBlocks). Так открытие не дорожает
+ * по мере того, как копятся особые дни прошлых семестров.
+ */
+class BinaryFormat {
+
+    static final int MAGIC = 0x4B545442; // "KTTB"
+    static final short VERSION = 5;
+    private static final short VERSION_FULL_DAYS = 1; // дни по MAX_PER_DAY ячеек
+    private static final short VERSION_NO_RULES = 2; // без правил замены
+    private static final short VERSION_NO_CHECKSUM = 3; // без контрольной суммы
+    private static final short VERSION_NO_INDEX = 4; // всё читается сразу
+
+    private static final int HEADER_SIZE = 28;
+    private static final int INDEX_SIZE = 16;
+    private static final int BLOCK_ENTRY = 16; // запись каталога блоков
+    /** Особых дней в блоке: день недели с соседями обычно помещается в одну-две страницы памяти */
+    static final int BLOCK_DAYS = 32;
+    private static final int NONE = -1;
+    /** Кодировка строк в файле. По имени, а не Charset: String(byte[], Charset) и getBytes(Charset) есть только с API 9 */
+    static final String CHARSET = "UTF-8";
+
+    private BinaryFormat() { }
+
+    /**
+     * Проверяет, начинается ли файл с сигнатуры двоичного формата
+     * @param head Первые четыре байта файла
+     * @return Является ли файл двоичным расписанием?
+     */
+    static boolean isBinary(byte[] head) {
+        return head.length >= 4 && ((head[0] & 0xFF) << 24 | (head[1] & 0xFF) << 16
+                | (head[2] & 0xFF) << 8 | (head[3] & 0xFF)) == MAGIC;
+    }
+
+    /**
+     * Записывает расписание в поток
+     * @param timetable Расписание
+     * @param stream Поток. Не закрывается.
+     * @throws IOException Ошибка ввода/вывода
+     */
+    static void write(Timetable timetable, OutputStream stream) throws IOException {
+        timetable.loadAll();
+        // Сначала собираем таблицы строк и уроков, чтобы одинаковые записи хранились один раз
+        Map<String, Integer> strings = new HashMap<String, Integer>();
+        Map<Lesson, Integer> lessons = new HashMap<Lesson, Integer>(); // равные уроки - одна запись
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        DataOutputStream stringTable = new DataOutputStream(stringBytes);
+        ByteArrayOutputStream offsetBytes = new ByteArrayOutputStream();
+        DataOutputStream stringIndex = new DataOutputStream(offsetBytes);
+        stringIndex.writeInt(0);
+        ByteArrayOutputStream lessonBytes = new ByteArrayOutputStream();
+        DataOutputStream lessonTable = new DataOutputStream(lessonBytes);
+        for (Lesson[] day : timetable.lessons)
+            collect(day, strings, stringTable, stringIndex, lessons, lessonTable);
+        DayMap specialDays = timetable.specialDays;
+        int[] dates = new int[specialDays.size()];
+        for (int i = 0, d = 0; i < specialDays.capacity(); i++)
+            if (specialDays.isUsed(i)) {
+                dates[d++] = specialDays.keyAt(i);
+                collect(specialDays.valueAt(i), strings, stringTable, stringIndex, lessons, lessonTable);
+            }
+        Arrays.sort(dates);
+
+        // Сетка и правила
+        ByteArrayOutputStream coreBytes = new ByteArrayOutputStream();
+        DataOutputStream core = new DataOutputStream(coreBytes);
+        for (Lesson[] day : timetable.lessons)
+            writeSlots(core, day, lessons);
+        OverrideRules rules = timetable.getRules();
+        core.writeShort(rules.size());
+        for (int i = 0; i < rules.size(); i++)
+            rules.get(i).write(core);
+
+        // Блоки особых дней, каждый со своей суммой
+        int blockCount = (dates.length + BLOCK_DAYS - 1) / BLOCK_DAYS;
+        ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+        DataOutputStream blocks = new DataOutputStream(blockBytes);
+        int lessonOffset = HEADER_SIZE + INDEX_SIZE + offsetBytes.size() + stringBytes.size();
+        int gridOffset = lessonOffset + lessonBytes.size();
+        int directoryOffset = gridOffset + core.size();
+        int blocksOffset = directoryOffset + blockCount * BLOCK_ENTRY + 4;
+        int[] directory = new int[blockCount * 4];
+        for (int b = 0; b < blockCount; b++) {
+            int begin = blocks.size();
+            CRC32 blockCrc = new CRC32();
+            DataOutputStream block = new DataOutputStream(new CheckedOutputStream(blocks, blockCrc));
+            for (int d = b * BLOCK_DAYS; d < Math.min(dates.length, (b + 1) * BLOCK_DAYS); d++) {
+                writeDate(block, dates[d]);
+                writeSlots(block, specialDays.get(dates[d]), lessons);
+            }
+            block.flush();
+            directory[b * 4] = dates[b * BLOCK_DAYS];
+            directory[b * 4 + 1] = blocksOffset + begin;
+            directory[b * 4 + 2] = blocks.size() - begin;
+            directory[b * 4 + 3] = (int)blockCrc.getValue();
+        }
+
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(stream, crc));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeByte(timetable.doubleWeek ? 1 : 0);
+        out.writeByte(0);
+        writeDate(out, timetable.firstDay);
+        out.writeInt(strings.size());
+        out.writeInt(lessons.size());
+        out.writeInt(timetable.lessons.length);
+        out.writeInt(dates.length);
+        out.writeInt(lessonOffset);
+        out.writeInt(gridOffset);
+        out.writeInt(directoryOffset);
+        out.writeInt(blockCount);
+        offsetBytes.writeTo(out);
+        stringBytes.writeTo(out);
+        lessonBytes.writeTo(out);
+        coreBytes.writeTo(out);
+        for (int value : directory)
+            out.writeInt(value);
+        out.flush();
+        DataOutputStream raw = new DataOutputStream(stream);
+        raw.writeInt((int)crc.getValue()); // сама сумма в сумму не входит
+        blockBytes.writeTo(raw); // у блоков свои суммы
+        raw.flush();
+    }
+
+    /**
+     * Читает расписание из файла, отображая его в память
+     * @param file Файл
+     * @return Экземпляр расписания
+     * @throws IOException Ошибка ввода/вывода или неверный формат файла
+     */
+    static Timetable read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Читает расписание из буфера
+     * @param buffer Буфер, позиция которого стоит на начале заголовка
+     * @return Экземпляр расписания
+     * @throws IOException Неверный формат данных
+     */
+    static Timetable read(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+                throw new IOException("Not a binary timetable");
+            int start = buffer.position() - 4;
+            short version = buffer.getShort();
+            if (version < VERSION_FULL_DAYS || version > VERSION)
+                throw new IOException("Unsupported timetable version " + version);
+            CRC32 crc = version > VERSION_NO_CHECKSUM ? new CRC32() : null;
+            boolean doubleWeek = (buffer.get() & 1) != 0;
+            buffer.get();
+            int firstDay = readDate(buffer);
+            int stringCount = buffer.getInt();
+            int lessonCount = buffer.getInt();
+            int gridDays = buffer.getInt();
+            int specialCount = buffer.getInt();
+
+            Timetable result = new Timetable(doubleWeek, Dates.toCalendar(firstDay));
+            if (gridDays != result.lessons.length)
+                throw new IOException("Grid size mismatch");
+            if (version > VERSION_NO_INDEX)
+                return readIndexed(buffer, start, result, stringCount, lessonCount);
+
+            String[] strings = new String[stringCount];
+            byte[] scratch = new byte[4096]; // и для строк, и для контрольной суммы
+            for (int i = 0; i < stringCount; i++) {
+                int length = buffer.getInt();
+                if (length > scratch.length) scratch = new byte[Math.max(length, scratch.length * 2)];
+                buffer.get(scratch, 0, length);
+                strings[i] = LessonPool.SHARED.intern(new String(scratch, 0, length, CHARSET));
+            }
+
+            Lesson[] lessons = new Lesson[lessonCount];
+            for (int i = 0; i < lessonCount; i++) {
+                Lesson lesson = new Lesson();
+                for (int f = 0; f < Lesson.FIELDS; f++) {
+                    int index = buffer.getInt();
+                    if (index != NONE) lesson.setField(f, strings[index]);
+                }
+                lessons[i] = LessonPool.SHARED.intern(lesson);
+            }
+            int checked = checksum(buffer, start, crc, scratch);
+
+            boolean sparse = version != VERSION_FULL_DAYS;
+            for (int d = 0; d < gridDays; d++)
+                result.setLessons(readSlots(buffer, lessons, sparse), d);
+            checked = checksum(buffer, checked, crc, scratch);
+            for (int i = 0; i < specialCount; i++) {
+                int date = readDate(buffer);
+                result.putSpecialDay(date, readSlots(buffer, lessons, sparse));
+            }
+            checked = checksum(buffer, checked, crc, scratch);
+            if (version > VERSION_NO_RULES) {
+                OverrideRules rules = OverrideRules.NONE;
+                for (int i = buffer.getShort() & 0xFFFF; i > 0; i--)
+                    rules = rules.with(OverrideRule.read(buffer));
+                result.setRules(rules);
+            }
+            checksum(buffer, checked, crc, scratch);
+            if (crc != null && buffer.getInt() != (int)crc.getValue())
+                throw new IOException("Timetable checksum mismatch");
+            return result;
+        } catch (RuntimeException e) { // выход за границы буфера или таблиц - файл повреждён
+            throw new IOException("Corrupted timetable: " + e);
+        }
+    }
+
+    /**
+     * Читает файл версии 5: индекс, сетку и правила. Остальное - по требованию (см. DayBlocks).
+     * @param buffer Буфер с позицией сразу за заголовком
+     * @param start Позиция начала заголовка (от неё отсчитываются смещения)
+     * @param result Расписание с уже прочитанными из заголовка полями
+     * @return Это же расписание
+     * @throws IOException Несовпадение контрольной суммы
+     */
+    private static Timetable readIndexed(ByteBuffer buffer, int start, Timetable result,
+                                         int stringCount, int lessonCount) throws IOException {
+        int lessonTable = start + buffer.getInt();
+        int grid = start + buffer.getInt();
+        int directory = start + buffer.getInt();
+        int blockCount = buffer.getInt();
+        int stringIndex = buffer.position();
+        // Всё до блоков проверяется сразу: сетка и таблицы нужны при любом обращении
+        ByteBuffer part = buffer.duplicate();
+        part.position(directory + blockCount * BLOCK_ENTRY);
+        CRC32 crc = new CRC32();
+        checksum(part, start, crc, new byte[4096]);
+        if (part.getInt() != (int)crc.getValue())
+            throw new IOException("Timetable checksum mismatch");
+
+        DayBlocks.Tables tables = new DayBlocks.Tables(buffer, stringIndex, stringCount, lessonTable, lessonCount);
+        part.position(grid);
+        for (int d = 0; d < result.lessons.length; d++)
+            result.setLessons(tables.day(part), d);
+        OverrideRules rules = OverrideRules.NONE;
+        for (int i = part.getShort() & 0xFFFF; i > 0; i--)
+            rules = rules.with(OverrideRule.read(part));
+        result.setRules(rules);
+
+        if (blockCount > 0) {
+            int[] first = new int[blockCount], offset = new int[blockCount], length = new int[blockCount], sums = new int[blockCount];
+            part.position(directory);
+            for (int b = 0; b < blockCount; b++) {
+                first[b] = part.getInt();
+                offset[b] = start + part.getInt();
+                length[b] = part.getInt();
+                sums[b] = part.getInt();
+                if (b > 0 && first[b] <= first[b - 1] || offset[b] + length[b] > buffer.limit())
+                    throw new IOException("Corrupted block directory");
+            }
+            result.attach(new DayBlocks(tables, buffer, first, offset, length, sums));
+            if (blockCount == 1) result.loadAll(); // один блок всё равно понадобится, а отображение файла можно отпустить
+        }
+        buffer.position(directory + blockCount * BLOCK_ENTRY + 4);
+        return result;
+    }
+
+    /**
+     * Добавляет к контрольной сумме байты буфера от from до текущей позиции
+     * @param crc Сумма (null - файл без суммы, ничего не делать)
+     * @param scratch Временный массив (CRC32 в Java 6 не умеет читать из ByteBuffer)
+     * @return Текущая позиция - начало следующего раздела
+     */
+    private static int checksum(ByteBuffer buffer, int from, CRC32 crc, byte[] scratch) {
+        int to = buffer.position();
+        if (crc == null) return to;
+        ByteBuffer part = buffer.duplicate();
+        part.position(from);
+        while (part.position() < to) {
+            int length = Math.min(scratch.length, to - part.position());
+            part.get(scratch, 0, length);
+            crc.update(scratch, 0, length);
+        }
+        return to;
+    }
+
+    private static void collect(Lesson[] day, Map<String, Integer> strings, DataOutputStream stringTable,
+                                DataOutputStream stringIndex, Map<Lesson, Integer> lessons,
+                                DataOutputStream lessonTable) throws IOException {
+        if (day == null) return;
+        for (Lesson lesson : day) {
+            if (lesson == null || lessons.containsKey(lesson)) continue;
+            for (int f = 0; f < Lesson.FIELDS; f++) {
+                String value = lesson.getField(f);
+                if (value == null) {
+                    lessonTable.writeInt(NONE);
+                    continue;
+                }
+                Integer index = strings.get(value);
+                if (index == null) {
+                    index = strings.size();
+                    strings.put(value, index);
+                    stringTable.write(value.getBytes(CHARSET));
+                    stringIndex.writeInt(stringTable.size()); // конец строки - начало следующей
+                }
+                lessonTable.writeInt(index);
+            }
+            lessons.put(lesson, lessons.size());
+        }
+    }
+
+    private static void writeSlots(DataOutputStream out, Lesson[] day, Map<Lesson, Integer> lessons) throws IOException {
+        int mask = 0;
+        int count = day == null ? 0 : Math.min(day.length, Timetable.MAX_PER_DAY);
+        for (int i = 0; i < count; i++)
+            if (day[i] != null) mask |= 1 << i;
+        out.writeShort(mask);
+        for (int i = 0; i < count; i++)
+            if (day[i] != null) out.writeInt(lessons.get(day[i]));
+    }
+
+    private static Lesson[] readSlots(ByteBuffer buffer, Lesson[] lessons, boolean sparse) {
+        if (sparse) {
+            int mask = buffer.getShort() & 0xFFFF;
+            if (mask == 0) return Timetable.EMPTY_DAY; // праздник или пустой день - без нового массива
+            Lesson[] day = new Lesson[Timetable.MAX_PER_DAY]; // полный день; если такой уже есть, пул вернёт общий
+            for (int i = 0; i < day.length; i++)
+                if ((mask & (1 << i)) != 0) day[i] = lessons[buffer.getInt()];
+            return day;
+        }
+        Lesson[] day = new Lesson[Timetable.MAX_PER_DAY];
+        for (int i = 0; i < Timetable.MAX_PER_DAY; i++) {
+            int index = buffer.getInt();
+            day[i] = index == NONE ? null : lessons[index];
+        }
+        return day;
+    }
+
+    private static void writeDate(DataOutputStream out, int date) throws IOException {
+        out.writeShort(Dates.year(date));
+        out.writeByte(Dates.month(date));
+        out.writeByte(Dates.dayOfMonth(date));
+    }
+
+    private static int readDate(ByteBuffer buffer) {
+        int year = buffer.getShort();
+        int month = buffer.get();
+        int day = buffer.get();
+        return Dates.epochDay(year, month, day);
+    }
+}
@@ -0,0 +1,529 @@
+package com.kpfu.Timetable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Импорт выгрузки учебного отдела сразу по всем группам (CSV или HTML-таблица) в файлы групп.
+ * <br>Выгрузка читается потоком, строка за строкой: в памяти держится только текущая группа,
+ * а готовые группы собираются в расписания и сохраняются (saveAs) параллельно на переданном исполнителе.
+ * Число групп, ждущих сохранения, ограничено - чтение притормаживает, если исполнитель не успевает.
+ * <br>Ошибка в группе (неверная строка, занятая дважды пара, сбой записи, обрыв выгрузки на ней) попадает в отчёт,
+ * эта группа не сохраняется, а импорт остальных продолжается.
+ * <pre>
+ * Столбцы (в этом порядке, лишние игнорируются, пустые - null):
+ *   группа; неделя (0 - каждую, 1 - нечётную, 2 - чётную); день недели (понедельник = 1); номер пары (с единицы);
+ *   полное название; сокращение; здание; аудитория; преподаватель; тип; комментарий
+ * Первая строка, где день недели - не число, считается заголовком и пропускается.
+ * </pre>
+ * Строки одной группы должны идти подряд (так выгрузку и делает учебный отдел); если группа встречается
+ * снова после другой, это ошибка группы. Группа, у которой есть строки с неделей 1 или 2, становится двухнедельной.
+ * <br>Кодировка (UTF-8, CP1251 или KOI8-R) определяется по началу выгрузки, см. CharsetSniffer.
+ */
+class BulkImporter {
+
+    /**
+     * Ошибка импорта одной группы
+     */
+    static class Failure {
+        /** Группа (пустая строка, если строка выгрузки без группы) */
+        final String group;
+        /** Номер строки выгрузки (с единицы) или 0, если ошибка не в разборе */
+        final int line;
+        /** Описание */
+        final String message;
+
+        Failure(String group, int line, String message) {
+            this.group = group;
+            this.line = line;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return (group.length() == 0 ? "без группы" : group) + (line > 0 ? ", строка " + line : "") + ": " + message;
+        }
+    }
+
+    /**
+     * Итог импорта
+     */
+    static class Report {
+        private final AtomicInteger imported = new AtomicInteger();
+        private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+        private int rows = 0;
+
+        /** @return Сколько групп сохранено */
+        int imported() {
+            return imported.get();
+        }
+
+        /** @return Ошибки по группам (порядок - по мере обнаружения) */
+        List<Failure> failures() {
+            synchronized (failures) {
+                return new ArrayList<Failure>(failures);
+            }
+        }
+
+        /** @return Сколько строк выгрузки разобрано */
+        int rows() {
+            return rows;
+        }
+
+        @Override
+        public String toString() {
+            return "imported=" + imported() + ", failed=" + failures.size() + ", rows=" + rows;
+        }
+    }
+
+    private static final int COLUMNS = 11;
+    private static final int COLUMN_GROUP = 0, COLUMN_WEEK = 1, COLUMN_DAY = 2, COLUMN_PAIR = 3, COLUMN_LESSON = 4;
+
+    private final ExecutorService executor;
+    private final File directory;
+    private final int firstDay; // эпохальный день: Calendar нельзя читать из нескольких потоков сразу
+    private final int inFlight;
+
+    /**
+     * Конструктор
+     * @param executor Исполнитель, на котором собираются и сохраняются группы; число его потоков и определяет параллельность
+     * @param directory Папка для файлов групп (имя файла - номер группы, как в TimetableRepository)
+     * @param firstDay Первый день семестра для всех групп (читается один раз, здесь же)
+     * @param inFlight Сколько групп может одновременно ждать сохранения (с запасом относительно числа потоков)
+     */
+    BulkImporter(ExecutorService executor, File directory, Calendar firstDay, int inFlight) {
+        this.executor = executor;
+        this.directory = directory;
+        this.firstDay = Dates.epochDay(firstDay);
+        this.inFlight = Math.max(1, inFlight);
+    }
+
+    /**
+     * Импортирует выгрузку в CSV
+     * @param stream Поток. Не закрывается.
+     * @param separator Разделитель столбцов (Excel в русской локали пишет ';')
+     * @return Итог импорта
+     * @throws IOException Не удалось начать чтение выгрузки. Обрыв посередине - ошибка в отчёте (см. Report.failures):
+     * уже прочитанные группы сохраняются, недочитанная - нет
+     * @throws InterruptedException Импорт прервали
+     */
+    Report importCsv(InputStream stream, char separator) throws IOException, InterruptedException {
+        return importRows(new CsvRows(open(stream), separator));
+    }
+
+    /**
+     * Импортирует выгрузку в виде HTML-таблицы (строки tr, ячейки td или th)
+     * @param stream Поток. Не закрывается.
+     * @return Итог импорта
+     * @throws IOException Не удалось начать чтение выгрузки. Обрыв посередине - ошибка в отчёте (см. Report.failures):
+     * уже прочитанные группы сохраняются, недочитанная - нет
+     * @throws InterruptedException Импорт прервали
+     */
+    Report importHtml(InputStream stream) throws IOException, InterruptedException {
+        return importRows(new HtmlRows(open(stream)));
+    }
+
+    private static Reader open(InputStream stream) throws IOException {
+        return new BufferedReader(CharsetSniffer.open(new BufferedInputStream(stream)));
+    }
+
+    private Report importRows(Rows rows) throws InterruptedException {
+        Report report = new Report();
+        Semaphore slots = new Semaphore(inFlight);
+        Set<String> seen = new HashSet<String>(); // уже встречавшиеся группы
+        List<String> cells = new ArrayList<String>(COLUMNS);
+        Group current = null;
+        boolean first = true;
+        try {
+            while (rows.next(cells)) {
+                if (first && (cells.size() <= COLUMN_DAY || parse(cells.get(COLUMN_DAY)) < 0)) { // заголовок
+                    first = false;
+                    continue;
+                }
+                first = false;
+                report.rows++;
+                String name = cell(cells, COLUMN_GROUP);
+                if (name == null) {
+                    report.failures.add(new Failure("", rows.line(), "не указана группа"));
+                    continue;
+                }
+                if (current == null || !current.name.equals(name)) {
+                    if (current != null) submit(current, report, slots);
+                    current = new Group(name);
+                    if (!seen.add(name)) current.fail(rows.line(), "строки группы идут не подряд, сохранена только первая часть");
+                }
+                current.add(cells, rows.line());
+            }
+            if (current != null) submit(current, report, slots);
+        } catch (IOException e) { // обрыв выгрузки: недочитанная группа не сохраняется, но в отчёт попадает
+            report.failures.add(new Failure(current == null ? "" : current.name, rows.line(),
+                    "выгрузка оборвалась, группа не сохранена: " + e.getMessage()));
+        } finally {
+            slots.acquire(inFlight); // ждём, пока сохранятся все отправленные группы
+            slots.release(inFlight);
+        }
+        return report;
+    }
+
+    /**
+     * Отправляет собранную группу на сохранение (или сразу в отчёт, если в ней ошибка)
+     */
+    private void submit(final Group group, final Report report, final Semaphore slots) throws InterruptedException {
+        if (group.error != null) {
+            report.failures.add(new Failure(group.name, group.errorLine, group.error));
+            return;
+        }
+        slots.acquire();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        String error = group.save(directory, firstDay);
+                        if (error == null) report.imported.incrementAndGet();
+                        else report.failures.add(new Failure(group.name, 0, error));
+                    } catch (RuntimeException e) {
+                        report.failures.add(new Failure(group.name, 0, e.toString()));
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            report.failures.add(new Failure(group.name, 0, "исполнитель остановлен"));
+        }
+    }
+
+    /** @return Значение ячейки без пробелов по краям или null, если ячейки нет или она пустая */
+    private static String cell(List<String> cells, int column) {
+        if (column >= cells.size()) return null;
+        String value = cells.get(column).trim();
+        return value.length() == 0 ? null : value;
+    }
+
+    /** @return Неотрицательное число из ячейки или -1, если это не число */
+    private static int parse(String value) {
+        value = value.trim();
+        if (value.length() == 0 || value.length() > 4) return -1;
+        int result = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            result = result * 10 + c - '0';
+        }
+        return result;
+    }
+
+    /**
+     * Уроки одной группы, накопленные из строк выгрузки
+     */
+    private static class Group {
+        final String name;
+        final Lesson[][] grid = new Lesson[15][]; // как Timetable.lessons двухнедельного расписания
+        boolean doubleWeek = false;
+        String error = null; // первая ошибка; после неё строки группы не разбираются
+        int errorLine = 0;
+
+        Group(String name) {
+            this.name = name;
+        }
+
+        void fail(int line, String message) {
+            if (error != null) return;
+            error = message;
+            errorLine = line;
+        }
+
+        void add(List<String> cells, int line) {
+            if (error != null) return;
+            String weekCell = cell(cells, COLUMN_WEEK), dayCell = cell(cells, COLUMN_DAY), pairCell = cell(cells, COLUMN_PAIR);
+            int week = weekCell == null ? 0 : parse(weekCell);
+            int day = dayCell == null ? -1 : parse(dayCell);
+            int pair = pairCell == null ? -1 : parse(pairCell);
+            if (week < 0 || week > 2) {
+                fail(line, "неверная неделя \"" + weekCell + "\"");
+                return;
+            }
+            if (day < 1 || day > 7) {
+                fail(line, "неверный день недели \"" + dayCell + "\"");
+                return;
+            }
+            if (pair < 1 || pair > Timetable.MAX_PER_DAY) {
+                fail(line, "неверный номер пары \"" + pairCell + "\"");
+                return;
+            }
+            Lesson lesson = new Lesson();
+            for (int f = 0; f < Lesson.FIELDS; f++)
+                lesson.setField(f, cell(cells, COLUMN_LESSON + f));
+            lesson = LessonPool.SHARED.intern(lesson); // одни и те же предметы у тысяч групп - один экземпляр
+            if (week != 0) doubleWeek = true;
+            if (week != 2) put(day, pair - 1, lesson, line);
+            if (week != 1) put(day + 7, pair - 1, lesson, line);
+        }
+
+        private void put(int row, int slot, Lesson lesson, int line) {
+            if (grid[row] == null) grid[row] = new Lesson[Timetable.MAX_PER_DAY];
+            Lesson old = grid[row][slot];
+            if (old != null && !old.equals(lesson))
+                fail(line, "пара " + (slot + 1) + " в день " + (row > 7 ? row - 7 + " чётной недели" : String.valueOf(row))
+                        + " занята дважды");
+            else grid[row][slot] = lesson;
+        }
+
+        /**
+         * Собирает и сохраняет расписание группы
+         * @return Описание ошибки или null, если всё хорошо
+         */
+        String save(File directory, int firstDay) {
+            if (name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.equals(".") || name.equals(".."))
+                return "недопустимое имя файла";
+            Timetable timetable = new Timetable(doubleWeek, firstDay);
+            int days = doubleWeek ? 14 : 7;
+            for (int row = 1; row <= days; row++)
+                if (grid[row] != null) timetable.setLessons(grid[row], row);
+            return timetable.saveAs(new File(directory, name).getPath()) ? null : "не удалось сохранить";
+        }
+    }
+
+    /**
+     * Источник строк выгрузки
+     */
+    private interface Rows {
+        /**
+         * Читает следующую строку
+         * @param cells Куда положить ячейки (очищается)
+         * @return Есть ли строка (false - конец выгрузки)
+         * @throws IOException Ошибка ввода/вывода
+         */
+        boolean next(List<String> cells) throws IOException;
+
+        /** @return Номер строки файла, на которой началась последняя прочитанная строка выгрузки */
+        int line();
+    }
+
+    /**
+     * Строки CSV: ячейки в кавычках могут содержать разделитель, перевод строки и удвоенные кавычки
+     */
+    private static class CsvRows implements Rows {
+        private final Reader in;
+        private final char separator;
+        private final StringBuilder cell = new StringBuilder();
+        private int line = 1, start = 1;
+        private int pending = -2; // заглянули на символ вперёд (-2 - не заглядывали)
+
+        CsvRows(Reader in, char separator) {
+            this.in = in;
+            this.separator = separator;
+        }
+
+        private int read() throws IOException {
+            if (pending != -2) {
+                int c = pending;
+                pending = -2;
+                return c;
+            }
+            int c = in.read();
+            if (c == '\n') line++;
+            return c;
+        }
+
+        public boolean next(List<String> cells) throws IOException {
+            cells.clear();
+            cell.setLength(0);
+            start = line;
+            boolean quoted = false, empty = true; // empty - в строке ещё ничего не было
+            while (true) {
+                int c = read();
+                if (c == -1) {
+                    if (empty) return false;
+                    cells.add(cell.toString());
+                    return true;
+                }
+                if (quoted) {
+                    if (c != '"') cell.append((char)c);
+                    else {
+                        int next = read();
+                        if (next == '"') cell.append('"');
+                        else {
+                            quoted = false;
+                            pending = next;
+                        }
+                    }
+                    continue;
+                }
+                if (c == '\r' || c == '\uFEFF') continue; // и метка порядка байт в начале
+                if (c == '\n') {
+                    if (empty) { // пустая строка
+                        start = line;
+                        continue;
+                    }
+                    cells.add(cell.toString());
+                    return true;
+                }
+                empty = false;
+                if (c == separator) {
+                    cells.add(cell.toString());
+                    cell.setLength(0);
+                } else if (c == '"' && cell.length() == 0) quoted = true;
+                else cell.append((char)c);
+            }
+        }
+
+        public int line() {
+            return start;
+        }
+    }
+
+    /**
+     * Строки HTML-таблицы. Разбирается только нужное: tr, td, th, br и сущности; остальные теги пропускаются.
+     */
+    private static class HtmlRows implements Rows {
+        private final Reader in;
+        private final StringBuilder cell = new StringBuilder();
+        private final StringBuilder tag = new StringBuilder();
+        private int line = 1, start = 1;
+        private boolean inCell = false;
+
+        HtmlRows(Reader in) {
+            this.in = in;
+        }
+
+        private int read() throws IOException {
+            int c = in.read();
+            if (c == '\n') line++;
+            return c;
+        }
+
+        public boolean next(List<String> cells) throws IOException {
+            cells.clear();
+            boolean inRow = false;
+            inCell = false;
+            while (true) {
+                int c = read();
+                if (c == -1) {
+                    if (inCell) cells.add(text());
+                    return !cells.isEmpty();
+                }
+                if (c == '<') {
+                    String name = readTag();
+                    if (name.equals("tr")) {
+                        cells.clear();
+                        inRow = true;
+                        inCell = false;
+                        start = line;
+                    } else if (name.equals("td") || name.equals("th")) {
+                        if (inCell) cells.add(text());
+                        if (!inRow) { // строка без tr - тоже строка
+                            inRow = true;
+                            start = line;
+                        }
+                        cell.setLength(0);
+                        inCell = true;
+                    } else if (name.equals("/td") || name.equals("/th")) {
+                        if (inCell) cells.add(text());
+                        inCell = false;
+                    } else if (name.equals("/tr") || name.equals("/table")) {
+                        if (inCell) cells.add(text());
+                        inCell = false;
+                        if (inRow && !cells.isEmpty()) return true;
+                        inRow = false;
+                    } else if (name.equals("br") && inCell) cell.append(' ');
+                } else if (inCell) {
+                    if (c == '&') entity();
+                    else cell.append((char)c);
+                }
+            }
+        }
+
+        public int line() {
+            return start;
+        }
+
+        /** @return Имя тега в нижнем регистре, для закрывающего - с "/" впереди; комментарии - пустое имя */
+        private String readTag() throws IOException {
+            tag.setLength(0);
+            int c = read();
+            if (c == '!') { // комментарий - до "-->", DOCTYPE - до ">"
+                c = read();
+                boolean comment = c == '-' && (c = read()) == '-';
+                int dashes = 0;
+                while (c != -1 && !(c == '>' && (!comment || dashes >= 2))) {
+                    dashes = c == '-' ? dashes + 1 : 0;
+                    c = read();
+                }
+                return "";
+            }
+            while (c != -1 && c != '>' && !Character.isWhitespace(c) && !(c == '/' && tag.length() > 0)) {
+                tag.append(Character.toLowerCase((char)c));
+                c = read();
+            }
+            boolean quoted = false;
+            char quote = 0;
+            while (c != -1 && (quoted || c != '>')) { // атрибуты, значения в кавычках могут содержать '>'
+                if (quoted && c == quote) quoted = false;
+                else if (!quoted && (c == '"' || c == '\'')) {
+                    quoted = true;
+                    quote = (char)c;
+                }
+                c = read();
+            }
+            return tag.toString();
+        }
+
+        /** Дописывает в ячейку символ сущности (&amp;, &nbsp;, &#1040; ...) */
+        private void entity() throws IOException {
+            tag.setLength(0);
+            int c;
+            while ((c = read()) != -1 && c != ';' && tag.length() < 10 && !Character.isWhitespace(c))
+                tag.append((char)c);
+            String name = tag.toString();
+            if (c != ';') { // не сущность - оставляем как есть
+                cell.append('&').append(name);
+                if (c != -1) cell.append((char)c);
+                return;
+            }
+            if (name.equals("amp")) cell.append('&');
+            else if (name.equals("lt")) cell.append('<');
+            else if (name.equals("gt")) cell.append('>');
+            else if (name.equals("quot")) cell.append('"');
+            else if (name.equals("apos")) cell.append('\'');
+            else if (name.equals("nbsp")) cell.append(' ');
+            else if (name.startsWith("#")) {
+                try {
+                    int code = name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X')
+                            ? Integer.parseInt(name.substring(2), 16) : Integer.parseInt(name.substring(1));
+                    if (Character.isValidCodePoint(code)) cell.append(Character.toChars(code)); // за U+FFFF - два char
+                    else cell.append('&').append(name).append(';');
+                } catch (NumberFormatException e) {
+                    cell.append('&').append(name).append(';');
+                }
+            } else cell.append('&').append(name).append(';');
+        }
+
+        /** @return Текст ячейки со схлопнутыми пробелами */
+        private String text() {
+            StringBuilder result = new StringBuilder(cell.length());
+            boolean space = false;
+            for (int i = 0; i < cell.length(); i++) {
+                char c = cell.charAt(i);
+                if (Character.isWhitespace(c)) space = result.length() > 0;
+                else {
+                    if (space) result.append(' ');
+                    space = false;
+                    result.append(c);
+                }
+            }
+            cell.setLength(0);
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.kpfu.Timetable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Определение кодировки старых текстовых файлов расписаний: UTF-8, CP1251 или KOI8-R.
+ * <br>Файл читается через потоковый декодер выбранной кодировки, так что строки сразу получаются правильными
+ * и перекодировать их потом (см. Lesson.fixEncoding) не нужно.
+ */
+class CharsetSniffer {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final Charset CP1251 = Charset.forName("windows-1251");
+    static final Charset KOI8_R = Charset.forName("KOI8-R");
+
+    /** Сколько байт начала файла смотреть */
+    static final int SAMPLE = 8192;
+
+    private CharsetSniffer() { }
+
+    /**
+     * Определяет кодировку по образцу байт.
+     * <br>Если образец - корректный UTF-8, это UTF-8. Иначе выбирается однобайтовая кодировка:
+     * в русском тексте строчных букв больше, чем заглавных, а в CP1251 и KOI8-R строчные и заглавные
+     * лежат в противоположных половинах верхних 64 кодов.
+     * @param sample Образец
+     * @param length Сколько байт образца заполнено
+     * @return Кодировка
+     */
+    static Charset detect(byte[] sample, int length) {
+        if (isUtf8(sample, length)) return UTF_8;
+        int low = 0, high = 0; // байты 0xC0-0xDF и 0xE0-0xFF
+        for (int i = 0; i < length; i++) {
+            int b = sample[i] & 0xFF;
+            if (b >= 0xE0) high++;
+            else if (b >= 0xC0) low++;
+        }
+        return high >= low ? CP1251 : KOI8_R; // CP1251: строчные в 0xE0-0xFF, KOI8-R - наоборот
+    }
+
+    /**
+     * @return Является ли образец корректным UTF-8 (последний символ может быть обрезан)
+     */
+    static boolean isUtf8(byte[] sample, int length) {
+        CharsetDecoder decoder = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer out = CharBuffer.allocate(1024);
+        ByteBuffer in = ByteBuffer.wrap(sample, 0, length);
+        while (true) {
+            CoderResult result = decoder.decode(in, out, false); // не конец: обрезанный хвост - не ошибка
+            if (result.isError()) return false;
+            if (result.isUnderflow()) return true;
+            out.clear();
+        }
+    }
+
+    /**
+     * Открывает поток как текст в определённой по началу кодировке.
+     * Неверные байты заменяются, а не обрывают чтение.
+     * @param stream Поток; должен поддерживать mark/reset (например, BufferedInputStream)
+     * @return Читатель в нужной кодировке
+     * @throws IOException Ошибка ввода/вывода
+     */
+    static Reader open(InputStream stream) throws IOException {
+        byte[] sample = new byte[SAMPLE];
+        stream.mark(SAMPLE);
+        int length = 0, read;
+        while (length < SAMPLE && (read = stream.read(sample, length, SAMPLE - length)) != -1)
+            length += read;
+        stream.reset();
+        CharsetDecoder decoder = detect(sample, length).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return new InputStreamReader(stream, decoder);
+    }
+}
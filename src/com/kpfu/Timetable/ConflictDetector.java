@@ -0,0 +1,202 @@
+package com.kpfu.Timetable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Поиск накладок между группами: одна аудитория или один преподаватель в одно время у разных уроков.
+ * <br>Диапазон дат делится на части, которые проверяются параллельно: дни друг от друга не зависят,
+ * так что части не делят никаких данных и время падает почти пропорционально числу ядер.
+ * Для каждого дня берутся уже разрешённые уроки (особые дни поверх сетки, см. Timetable.lessonsOn).
+ * <br>Одинаковые уроки у нескольких групп (потоковая лекция) накладкой не считаются.
+ * Лучше проверять замороженные снимки (см. Timetable.freeze), чтобы расписания не менялись во время проверки.
+ */
+class ConflictDetector {
+
+    /** Накладка по аудитории (здание + аудитория) */
+    static final int ROOM = 0;
+    /** Накладка по преподавателю */
+    static final int TEACHER = 1;
+
+    /**
+     * Найденная накладка
+     */
+    static class Conflict {
+        /** Вид накладки: ROOM или TEACHER */
+        final int kind;
+        /** Эпохальный день */
+        final int day;
+        /** Номер урока в дне (с нуля) */
+        final int slot;
+        /** Аудитория ("здание/аудитория") или преподаватель, как записано у первой группы */
+        final String value;
+        /** Группы, у которых в это время разные уроки с этим значением (по алфавиту) */
+        final String[] groups;
+
+        Conflict(int kind, int day, int slot, String value, String[] groups) {
+            this.kind = kind;
+            this.day = day;
+            this.slot = slot;
+            this.value = value;
+            this.groups = groups;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(DayModel.dateLabel(day)).append(", ").append(slot + 1).append(" урок, ")
+                    .append(kind == ROOM ? "аудитория " : "преподаватель ").append(value).append(':');
+            for (String group : groups) result.append(' ').append(group);
+            return result.toString();
+        }
+    }
+
+    private static final Comparator<Conflict> BY_TIME = new Comparator<Conflict>() {
+        public int compare(Conflict a, Conflict b) {
+            if (a.day != b.day) return a.day < b.day ? -1 : 1;
+            if (a.slot != b.slot) return a.slot < b.slot ? -1 : 1;
+            if (a.kind != b.kind) return a.kind < b.kind ? -1 : 1;
+            return a.value.compareTo(b.value);
+        }
+    };
+
+    private final ExecutorService executor;
+    private final int parts;
+
+    /**
+     * Конструктор
+     * @param executor Исполнитель; число его потоков и определяет параллельность
+     * @param parts На сколько частей делить диапазон дат (с запасом относительно числа потоков - для равномерной загрузки)
+     */
+    ConflictDetector(ExecutorService executor, int parts) {
+        this.executor = executor;
+        this.parts = Math.max(1, parts);
+    }
+
+    /**
+     * Проверяет расписания групп на накладки
+     * @param timetables Расписания по группам
+     * @param from Первый эпохальный день
+     * @param to Последний эпохальный день (включительно)
+     * @return Все накладки по возрастанию даты и номера урока
+     * @throws InterruptedException Проверку прервали
+     */
+    List<Conflict> detect(Map<String, Timetable> timetables, int from, int to) throws InterruptedException {
+        TreeMap<String, Timetable> sorted = new TreeMap<String, Timetable>(timetables); // порядок групп в отчёте
+        final String[] groups = sorted.keySet().toArray(new String[sorted.size()]);
+        final Timetable[] sources = sorted.values().toArray(new Timetable[sorted.size()]);
+        ArrayList<Future<List<Conflict>>> futures = new ArrayList<Future<List<Conflict>>>();
+        int days = to - from + 1;
+        if (days <= 0 || groups.length < 2) return new ArrayList<Conflict>();
+        int count = Math.min(parts, days);
+        for (int i = 0; i < count; i++) {
+            final int partFrom = from + (int)((long)days * i / count);
+            final int partTo = from + (int)((long)days * (i + 1) / count) - 1;
+            futures.add(executor.submit(new Callable<List<Conflict>>() {
+                public List<Conflict> call() {
+                    return sweep(groups, sources, partFrom, partTo);
+                }
+            }));
+        }
+        ArrayList<Conflict> result = new ArrayList<Conflict>();
+        try {
+            for (Future<List<Conflict>> future : futures)
+                result.addAll(future.get()); // части идут по возрастанию дат, так что порядок дней сохраняется
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<List<Conflict>> future : futures)
+                future.cancel(true);
+        }
+        return result;
+    }
+
+    /**
+     * Проверяет часть диапазона в одном потоке
+     */
+    static List<Conflict> sweep(String[] groups, Timetable[] sources, int from, int to) {
+        ArrayList<Conflict> result = new ArrayList<Conflict>();
+        Lesson[][] today = new Lesson[sources.length][];
+        HashMap<String, Cell> rooms = new HashMap<String, Cell>();
+        HashMap<String, Cell> teachers = new HashMap<String, Cell>();
+        ArrayList<Conflict> day = new ArrayList<Conflict>();
+        for (int date = from; date <= to; date++) {
+            if (Thread.currentThread().isInterrupted()) break;
+            for (int g = 0; g < sources.length; g++)
+                today[g] = sources[g].lessonsOn(date);
+            for (int slot = 0; slot < Timetable.MAX_PER_DAY; slot++) {
+                rooms.clear();
+                teachers.clear();
+                for (int g = 0; g < sources.length; g++) {
+                    Lesson[] lessons = today[g];
+                    if (lessons == null || slot >= lessons.length || lessons[slot] == null) continue;
+                    Lesson lesson = lessons[slot];
+                    if (lesson.room != null) {
+                        String room = lesson.building == null ? lesson.room : lesson.building + "/" + lesson.room;
+                        add(rooms, room, g, lesson);
+                    }
+                    if (lesson.teacher != null)
+                        add(teachers, lesson.teacher, g, lesson);
+                }
+                day.clear();
+                collect(rooms, ROOM, date, slot, groups, day);
+                collect(teachers, TEACHER, date, slot, groups, day);
+                Collections.sort(day, BY_TIME);
+                result.addAll(day);
+            }
+        }
+        return result;
+    }
+
+    private static void add(HashMap<String, Cell> cells, String value, int group, Lesson lesson) {
+        String key = value.trim().toLowerCase(Locale.ENGLISH); // как в LessonIndex.key
+        Cell cell = cells.get(key);
+        if (cell == null) cells.put(key, new Cell(value, group, lesson));
+        else cell.add(group, lesson);
+    }
+
+    private static void collect(HashMap<String, Cell> cells, int kind, int day, int slot,
+                                String[] groups, List<Conflict> result) {
+        for (Cell cell : cells.values()) {
+            if (!cell.mixed) continue;
+            String[] names = new String[cell.count];
+            for (int i = 0; i < cell.count; i++) names[i] = groups[cell.groups[i]];
+            result.add(new Conflict(kind, day, slot, cell.value, names));
+        }
+    }
+
+    /** Кто занимает аудиторию (или преподавателя) в одну ячейку времени */
+    private static class Cell {
+        final String value;
+        final Lesson first;
+        int[] groups = new int[2];
+        int count = 0;
+        boolean mixed = false; // встретился урок, отличный от первого
+
+        Cell(String value, int group, Lesson lesson) {
+            this.value = value;
+            this.first = lesson;
+            groups[count++] = group;
+        }
+
+        void add(int group, Lesson lesson) {
+            if (count == groups.length) {
+                int[] grown = new int[count * 2];
+                System.arraycopy(groups, 0, grown, 0, count);
+                groups = grown;
+            }
+            groups[count++] = group;
+            if (lesson != first && !lesson.equals(first)) mixed = true;
+        }
+    }
+}
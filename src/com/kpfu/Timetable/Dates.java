@@ -0,0 +1,103 @@
+package com.kpfu.Timetable;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Перевод дат в "эпохальный день" - номер дня от 1 января 1970 года - и обратно.
+ * <br>Учитываются только год, месяц и число: время суток и часовой пояс на результат не влияют,
+ * поэтому Calendar.getInstance() и new GregorianCalendar(год, месяц, число) дают один и тот же день.
+ */
+class Dates {
+
+    private Dates() { }
+
+    /**
+     * @param date Дата (не изменяется)
+     * @return Номер дня от 1 января 1970 года
+     */
+    static int epochDay(Calendar date) {
+        return epochDay(date.get(Calendar.YEAR), date.get(Calendar.MONTH), date.get(Calendar.DAY_OF_MONTH));
+    }
+
+    /**
+     * @param year Год
+     * @param month Месяц, как в Calendar (январь = 0)
+     * @param day Число
+     * @return Номер дня от 1 января 1970 года
+     */
+    static int epochDay(int year, int month, int day) {
+        month++; // дальше месяцы с единицы
+        if (month <= 2) year--;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1; // год с 1 марта
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @param epochDay Номер дня от 1 января 1970 года
+     * @return Дата (полночь по местному времени)
+     */
+    static Calendar toCalendar(int epochDay) {
+        int civil = civil(epochDay);
+        return new GregorianCalendar(civil >> 9, (civil >> 5 & 15) - 1, civil & 31);
+    }
+
+    /** @return Год */
+    static int year(int epochDay) {
+        return civil(epochDay) >> 9;
+    }
+
+    /** @return Месяц, как в Calendar (январь = 0) */
+    static int month(int epochDay) {
+        return (civil(epochDay) >> 5 & 15) - 1;
+    }
+
+    /** @return Число месяца */
+    static int dayOfMonth(int epochDay) {
+        return civil(epochDay) & 31;
+    }
+
+    /**
+     * @param epochDay Номер дня от 1 января 1970 года
+     * @return День недели: понедельник = 1, воскресенье = 7
+     */
+    static int dayOfWeek(int epochDay) {
+        return floorMod(epochDay + 3, 7) + 1; // 1 января 1970 - четверг
+    }
+
+    /**
+     * @param epochDay Номер дня от 1 января 1970 года
+     * @return Понедельник той же недели
+     */
+    static int monday(int epochDay) {
+        return epochDay - dayOfWeek(epochDay) + 1;
+    }
+
+    static int floorDiv(int a, int b) {
+        int q = a / b;
+        return (a % b != 0 && (a ^ b) < 0) ? q - 1 : q;
+    }
+
+    static int floorMod(int a, int b) {
+        return a - floorDiv(a, b) * b;
+    }
+
+    /**
+     * @return Год, месяц (с единицы) и число, упакованные как год << 9 | месяц << 5 | число
+     */
+    private static int civil(int epochDay) {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return year << 9 | month << 5 | day;
+    }
+}
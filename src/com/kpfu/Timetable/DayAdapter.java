@@ -0,0 +1,88 @@
+package com.kpfu.Timetable;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TableLayout;
+import android.widget.TextView;
+
+/**
+ * Адаптер списка дней. Строки дней и строки уроков внутри них переиспользуются при прокрутке,
+ * так что количество созданных элементов ограничено тем, что помещается на экране.
+ */
+class DayAdapter extends BaseAdapter {
+
+    private final LayoutInflater inflater;
+    private DayWindow window = null;
+
+    /**
+     * Конструктор
+     * @param inflater Для создания строк из заготовок
+     */
+    DayAdapter(LayoutInflater inflater) {
+        this.inflater = inflater;
+    }
+
+    /**
+     * @param window Окно показываемых дней
+     */
+    void setWindow(DayWindow window) {
+        this.window = window;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return window == null ? 0 : window.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return window.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return window.get(position).day;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View day = convertView;
+        Holder holder;
+        if (day == null) { // берём заготовку "день", только если нечего переиспользовать
+            day = inflater.inflate(R.layout.day, parent, false);
+            holder = new Holder();
+            holder.date = (TextView)day.findViewById(R.id.textViewDate);
+            holder.lessons = (TableLayout)day.findViewById(R.id.tableLayoutLessons);
+            day.setTag(holder);
+        }
+        else holder = (Holder)day.getTag();
+        DayModel model = window.get(position);
+        holder.date.setText(model.dateLabel); // меняем текст заголовка строки,..
+        TableLayout table = holder.lessons;
+        // строк уроков ровно столько, сколько уроков: лишние убираем, недостающие добавляем
+        if (table.getChildCount() > model.names.length)
+            table.removeViews(model.names.length, table.getChildCount() - model.names.length);
+        while (table.getChildCount() < model.names.length)
+            table.addView(inflater.inflate(R.layout.lesson, table, false));
+        for (int i = 0; i < model.names.length; i++) {
+            View lessonRow = table.getChildAt(i);
+            ((TextView)lessonRow.findViewById(R.id.textViewTime)).setText(model.slotLabels[i]); // время,..
+            ((TextView)lessonRow.findViewById(R.id.textViewFullName)).setText(model.names[i]); // и название урока
+        }
+        return day;
+    }
+
+    /** Ссылки на элементы строки дня, чтобы не искать их при каждом переиспользовании */
+    private static class Holder {
+        TextView date;
+        TableLayout lessons;
+    }
+}
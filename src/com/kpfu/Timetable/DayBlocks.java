@@ -0,0 +1,176 @@
+package com.kpfu.Timetable;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Ещё не прочитанные особые дни расписания, открытого из файла версии 5 (см. BinaryFormat).
+ * <br>Особые дни лежат в файле блоками по датам; блок читается, только когда понадобится день из его диапазона
+ * (Timetable.resolve) или расписание целиком (Timetable.loadAll). Так время открытия не растёт
+ * от накопленных за годы особых дней. Строки и уроки тоже разбираются по требованию, по номеру.
+ * <br>Каждый блок проверяется своей контрольной суммой при чтении. Повреждённый блок пропускается
+ * (его дни идут по сетке), а расписание помечается повреждённым (см. isDamaged).
+ * <br>Все методы вызываются под блокировкой расписания.
+ */
+class DayBlocks {
+
+    /**
+     * Таблицы строк и уроков файла. Общие для расписания и его копий (см. Timetable.copy),
+     * поэтому разобранное однажды не разбирается снова.
+     */
+    static class Tables {
+        private final ByteBuffer buffer; // весь файл
+        private final int stringIndex; // смещения строк: stringCount + 1 int от начала данных строк
+        private final int stringData;
+        private final int lessonTable; // уроки по Lesson.FIELDS int
+        private final String[] strings;
+        private final Lesson[] lessons;
+
+        Tables(ByteBuffer buffer, int stringIndex, int stringCount, int lessonTable, int lessonCount) {
+            this.buffer = buffer;
+            this.stringIndex = stringIndex;
+            this.stringData = stringIndex + (stringCount + 1) * 4;
+            this.lessonTable = lessonTable;
+            this.strings = new String[stringCount];
+            this.lessons = new Lesson[lessonCount];
+        }
+
+        /** @return Строка по номеру */
+        synchronized String string(int index) {
+            String result = strings[index];
+            if (result != null) return result;
+            int from = buffer.getInt(stringIndex + index * 4), to = buffer.getInt(stringIndex + index * 4 + 4);
+            byte[] bytes = new byte[to - from];
+            ByteBuffer part = buffer.duplicate();
+            part.position(stringData + from);
+            part.get(bytes);
+            try {
+                result = LessonPool.SHARED.intern(new String(bytes, BinaryFormat.CHARSET));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e); // UTF-8 есть всегда
+            }
+            strings[index] = result;
+            return result;
+        }
+
+        /** @return Урок по номеру */
+        synchronized Lesson lesson(int index) {
+            Lesson result = lessons[index];
+            if (result != null) return result;
+            result = new Lesson();
+            int position = lessonTable + index * Lesson.FIELDS * 4;
+            for (int f = 0; f < Lesson.FIELDS; f++) {
+                int string = buffer.getInt(position + f * 4);
+                if (string >= 0) result.setField(f, string(string));
+            }
+            result = LessonPool.SHARED.intern(result);
+            lessons[index] = result;
+            return result;
+        }
+
+        /**
+         * Читает день (маска занятых ячеек и номера уроков) с текущей позиции буфера
+         * @param buffer Буфер с позицией на начале дня
+         * @return Уроки дня
+         */
+        Lesson[] day(ByteBuffer buffer) {
+            int mask = buffer.getShort() & 0xFFFF;
+            if (mask == 0) return Timetable.EMPTY_DAY;
+            Lesson[] day = new Lesson[Timetable.MAX_PER_DAY]; // в памяти день полный (см. BinaryFormat)
+            for (int i = 0; i < day.length; i++)
+                if ((mask & (1 << i)) != 0) day[i] = lesson(buffer.getInt());
+            return day;
+        }
+    }
+
+    private final Tables tables;
+    private final ByteBuffer buffer;
+    private final int[] first; // первый день диапазона каждого блока, по возрастанию
+    private final int[] offset, length, crc; // расположение и контрольная сумма каждого блока
+    private final boolean[] loaded;
+    private int remaining; // сколько блоков ещё не прочитано
+    private boolean damaged = false;
+
+    DayBlocks(Tables tables, ByteBuffer buffer, int[] first, int[] offset, int[] length, int[] crc) {
+        this.tables = tables;
+        this.buffer = buffer;
+        this.first = first;
+        this.offset = offset;
+        this.length = length;
+        this.crc = crc;
+        this.loaded = new boolean[first.length];
+        this.remaining = first.length;
+    }
+
+    /**
+     * @return Копия для копии расписания: файл и таблицы общие, прочитанность блоков - своя
+     */
+    DayBlocks copy() {
+        DayBlocks result = new DayBlocks(tables, buffer, first, offset, length, crc);
+        System.arraycopy(loaded, 0, result.loaded, 0, loaded.length);
+        result.remaining = remaining;
+        result.damaged = damaged;
+        return result;
+    }
+
+    /** @return Все ли блоки прочитаны? */
+    boolean isComplete() {
+        return remaining == 0;
+    }
+
+    /** @return Оказался ли какой-нибудь прочитанный блок повреждённым? */
+    boolean isDamaged() {
+        return damaged;
+    }
+
+    /**
+     * Дочитывает блок, в диапазон которого попадает день
+     * @param day Эпохальный день
+     * @param into Куда складывать особые дни
+     */
+    void load(int day, DayMap into) {
+        int low = 0, high = first.length; // последний блок, начинающийся не позже дня
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (first[middle] <= day) low = middle + 1;
+            else high = middle;
+        }
+        if (low > 0) loadBlock(low - 1, into);
+    }
+
+    /**
+     * Дочитывает все блоки
+     * @param into Куда складывать особые дни
+     */
+    void loadAll(DayMap into) {
+        for (int i = 0; i < first.length && remaining > 0; i++)
+            loadBlock(i, into);
+    }
+
+    private void loadBlock(int block, DayMap into) {
+        if (loaded[block]) return;
+        loaded[block] = true;
+        remaining--;
+        ByteBuffer part = buffer.duplicate();
+        part.position(offset[block]);
+        part.limit(offset[block] + length[block]);
+        CRC32 sum = new CRC32();
+        byte[] bytes = new byte[length[block]];
+        part.get(bytes);
+        sum.update(bytes, 0, bytes.length);
+        if ((int)sum.getValue() != crc[block]) {
+            damaged = true;
+            return;
+        }
+        ByteBuffer days = ByteBuffer.wrap(bytes);
+        try {
+            while (days.hasRemaining()) {
+                int date = Dates.epochDay(days.getShort(), days.get(), days.get());
+                into.put(date, LessonPool.SHARED.intern(tables.day(days)));
+            }
+        } catch (RuntimeException e) { // сумма сошлась, а содержимое нет - файл записан неверно
+            damaged = true;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.kpfu.Timetable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Сохранённые готовые к показу дни (DayModel) вокруг сегодняшнего - чтобы при холодном запуске
+ * сразу показать список, не дожидаясь загрузки и разбора расписания.
+ * <br>Кэш лежит рядом с файлом расписания и помечен отметкой источника (см. stamp): если файл расписания
+ * или его журнал с тех пор менялись, кэш не используется. Показанные из кэша дни потом всё равно сверяются
+ * с загруженным расписанием (DayWindow.insert заменяет отличающиеся), а кэш переписывается, только если что-то изменилось.
+ * <pre>
+ * Формат (big-endian):
+ *   int   MAGIC ("KTTV")
+ *   short версия формата
+ *   long  отметка источника
+ *   int   первый эпохальный день
+ *   short количество дней (подряд)
+ *   дни: UTF подпись даты, byte количество уроков, затем для каждого UTF подпись времени и UTF название
+ *   int   CRC32 всех предыдущих байт
+ * </pre>
+ */
+class DayCache {
+
+    /** Расширение файла кэша (добавляется к имени файла расписания) */
+    static final String SUFFIX = ".days";
+
+    static final int MAGIC = 0x4B545456; // "KTTV"
+    static final short VERSION = 1; // менять при любом изменении вида DayModel (подписей, звонков)
+
+    private static final int MAX_DAYS = 366;
+
+    private DayCache() { }
+
+    /**
+     * Отметка источника: меняется при любой записи файла расписания или его журнала.
+     * Вычисляется по размерам и времени изменения, не читая файлы.
+     * @param filename Имя файла расписания
+     * @return Отметка (0, если файла нет)
+     */
+    static long stamp(String filename) {
+        File file = new File(filename);
+        if (!file.exists()) return 0;
+        File journal = new File(filename + OverrideJournal.SUFFIX);
+        long result = file.length() * 31 + file.lastModified();
+        result = result * 31 + journal.length();
+        return result * 31 + journal.lastModified();
+    }
+
+    /**
+     * Читает кэш
+     * @param filename Имя файла расписания
+     * @param stamp Текущая отметка источника
+     * @param today Сегодняшний эпохальный день - кэш без него бесполезен
+     * @return Дни подряд по возрастанию или null, если кэша нет, он устарел или повреждён
+     */
+    static List<DayModel> load(String filename, long stamp, int today) {
+        if (stamp == 0) return null;
+        File file = new File(filename + SUFFIX);
+        if (!file.exists()) return null;
+        try {
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), crc));
+            try {
+                if (in.readInt() != MAGIC || in.readShort() != VERSION || in.readLong() != stamp) return null;
+                int from = in.readInt();
+                int count = in.readUnsignedShort();
+                if (count == 0 || count > MAX_DAYS || today < from || today >= from + count) return null;
+                List<DayModel> result = new ArrayList<DayModel>(count);
+                for (int i = 0; i < count; i++) {
+                    String dateLabel = in.readUTF();
+                    int lessons = in.readUnsignedByte();
+                    if (lessons > Timetable.MAX_PER_DAY) return null;
+                    String[] slotLabels = new String[lessons];
+                    String[] names = new String[lessons];
+                    for (int j = 0; j < lessons; j++) {
+                        slotLabels[j] = in.readUTF();
+                        names[j] = in.readUTF();
+                    }
+                    result.add(new DayModel(from + i, dateLabel, slotLabels, names));
+                }
+                int expected = (int)crc.getValue();
+                if (in.readInt() != expected) return null;
+                return result;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Записывает кэш (атомарно, как Timetable.saveAs)
+     * @param filename Имя файла расписания
+     * @param stamp Отметка источника, по которому построены дни
+     * @param days Дни подряд по возрастанию
+     * @return Успешна ли запись?
+     */
+    static boolean save(String filename, long stamp, List<DayModel> days) {
+        if (days.isEmpty() || days.size() > MAX_DAYS) return false;
+        File target = new File(filename + SUFFIX);
+        File temp = null;
+        try {
+            temp = Timetable.tempFile(target);
+            FileOutputStream file = new FileOutputStream(temp, false);
+            try {
+                CRC32 crc = new CRC32();
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file), crc));
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeLong(stamp);
+                out.writeInt(days.get(0).day);
+                out.writeShort(days.size());
+                for (DayModel day : days) {
+                    out.writeUTF(day.dateLabel);
+                    out.writeByte(day.names.length);
+                    for (int j = 0; j < day.names.length; j++) {
+                        out.writeUTF(day.slotLabels[j]);
+                        out.writeUTF(day.names[j]);
+                    }
+                }
+                out.writeInt((int)crc.getValue()); // после этого сумма уже не нужна
+                out.flush();
+                file.getChannel().force(true);
+            } finally {
+                file.close();
+            }
+            if (!temp.renameTo(target) && !(target.delete() && temp.renameTo(target)))
+                throw new IOException("Cannot replace " + target);
+            return true;
+        } catch (IOException e) {
+            if (temp != null) temp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Сверяет кэш с загруженным расписанием и переписывает его, если что-то отличается
+     * @param filename Имя файла расписания
+     * @param stamp Отметка источника, снятая перед загрузкой расписания
+     * @param timetable Загруженное расписание
+     * @param from Первый эпохальный день кэша
+     * @param to Последний эпохальный день кэша (включительно)
+     * @param cached Прочитанный раньше кэш (может быть null)
+     * @return Был ли кэш переписан?
+     */
+    static boolean refresh(String filename, long stamp, Timetable timetable, int from, int to, List<DayModel> cached) {
+        List<DayModel> days = new ArrayList<DayModel>(to - from + 1);
+        for (int day = from; day <= to; day++)
+            days.add(DayModel.of(timetable, day));
+        if (days.equals(cached)) return false;
+        return save(filename, stamp, days);
+    }
+}
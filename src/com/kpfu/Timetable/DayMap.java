@@ -0,0 +1,173 @@
+package com.kpfu.Timetable;
+
+import java.util.Arrays;
+
+/**
+ * Отображение "эпохальный день -> уроки дня" с открытой адресацией.
+ * <br>Ключи - простые int (см. Dates.epochDay), так что поиск не создаёт объектов и не упаковывает числа.
+ * <br>Обход без выделения памяти: для i от 0 до capacity() проверять isUsed(i) и брать keyAt(i)/valueAt(i).
+ */
+class DayMap {
+
+    private static final int FREE = Integer.MIN_VALUE; // такого дня заведомо не бывает
+
+    private int[] keys;
+    private Lesson[][] values;
+    private int size = 0;
+    private int mask; // capacity - 1, ёмкость - степень двойки
+
+    /** Конструктор пустого отображения */
+    DayMap() {
+        this(8);
+    }
+
+    /**
+     * Конструктор
+     * @param expected Ожидаемое количество записей
+     */
+    DayMap(int expected) {
+        int capacity = 8;
+        while (capacity < expected * 2) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /**
+     * @param day Эпохальный день
+     * @return Уроки дня или null, если день не записан
+     */
+    Lesson[] get(int day) {
+        int i = indexOf(day);
+        return i < 0 ? null : values[i];
+    }
+
+    /**
+     * @param day Эпохальный день
+     * @return Есть ли запись для этого дня?
+     */
+    boolean containsKey(int day) {
+        return indexOf(day) >= 0;
+    }
+
+    /**
+     * Записывает уроки дня, заменяя прежние
+     * @param day Эпохальный день
+     * @param lessons Уроки дня
+     * @return Прежние уроки дня или null
+     */
+    Lesson[] put(int day, Lesson[] lessons) {
+        int i = slot(day);
+        while (keys[i] != FREE) {
+            if (keys[i] == day) {
+                Lesson[] old = values[i];
+                values[i] = lessons;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = day;
+        values[i] = lessons;
+        if (++size * 2 > keys.length) rehash(keys.length << 1);
+        return null;
+    }
+
+    /**
+     * Удаляет запись дня
+     * @param day Эпохальный день
+     * @return Удалённые уроки дня или null
+     */
+    Lesson[] remove(int day) {
+        int i = indexOf(day);
+        if (i < 0) return null;
+        Lesson[] old = values[i];
+        // Сдвигаем назад следующие записи цепочки, чтобы не оставлять "дыр" в пробах
+        int gap = i;
+        int j = (i + 1) & mask;
+        while (keys[j] != FREE) {
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+            j = (j + 1) & mask;
+        }
+        keys[gap] = FREE;
+        values[gap] = null;
+        size--;
+        return old;
+    }
+
+    /** Удаляет все записи */
+    void clear() {
+        Arrays.fill(keys, FREE);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return Копия отображения. Сами массивы уроков не копируются.
+     */
+    DayMap copy() {
+        DayMap result = new DayMap();
+        result.keys = keys.clone();
+        result.values = values.clone();
+        result.size = size;
+        result.mask = mask;
+        return result;
+    }
+
+    /** @return Количество записей */
+    int size() {
+        return size;
+    }
+
+    /** @return Количество ячеек для обхода */
+    int capacity() {
+        return keys.length;
+    }
+
+    /** @return Занята ли ячейка? */
+    boolean isUsed(int index) {
+        return keys[index] != FREE;
+    }
+
+    /** @return День в ячейке */
+    int keyAt(int index) {
+        return keys[index];
+    }
+
+    /** @return Уроки в ячейке */
+    Lesson[] valueAt(int index) {
+        return values[index];
+    }
+
+    private int indexOf(int day) {
+        int i = slot(day);
+        while (keys[i] != FREE) {
+            if (keys[i] == day) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(int day) {
+        int h = day * 0x9E3779B9; // соседние дни разбрасываются по таблице
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        values = new Lesson[capacity][];
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Lesson[][] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != FREE) put(oldKeys[i], oldValues[i]);
+    }
+}
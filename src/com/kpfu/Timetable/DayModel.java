@@ -0,0 +1,78 @@
+package com.kpfu.Timetable;
+
+import java.util.Arrays;
+
+/**
+ * Готовые к показу данные одного дня: подпись даты и подписи уроков.
+ * <br>Не зависит от Android, поэтому может вычисляться в фоновом потоке заранее.
+ */
+class DayModel {
+
+    /** Эпохальный день (см. Dates.epochDay) */
+    final int day;
+    /** Подпись даты */
+    final String dateLabel;
+    /** Подписи времени уроков ("8:30"; номер урока, если время неизвестно), только непустые ячейки */
+    final String[] slotLabels;
+    /** Названия уроков, в том же порядке, что и slotLabels */
+    final String[] names;
+
+    DayModel(int day, String dateLabel, String[] slotLabels, String[] names) {
+        this.day = day;
+        this.dateLabel = dateLabel;
+        this.slotLabels = slotLabels;
+        this.names = names;
+    }
+
+    /**
+     * Собирает данные дня из расписания
+     * @param timetable Расписание
+     * @param day Эпохальный день
+     * @return Данные дня
+     */
+    static DayModel of(Timetable timetable, int day) {
+        Lesson[] lessons = timetable.lessonsOn(day);
+        int count = 0;
+        if (lessons != null)
+            for (Lesson lesson : lessons)
+                if (lesson != null && lesson.fullName != null) count++;
+        BellSchedule bells = timetable.getBells();
+        String[] slotLabels = new String[count];
+        String[] names = new String[count];
+        count = 0;
+        if (lessons != null)
+            for (int i = 0; i < lessons.length; i++)
+                if (lessons[i] != null && lessons[i].fullName != null) {
+                    slotLabels[count] = bells.has(i) ? BellSchedule.format(bells.start(i)) : Integer.toString(i + 1);
+                    names[count++] = lessons[i].fullName;
+                }
+        return new DayModel(day, dateLabel(day), slotLabels, names);
+    }
+
+    /**
+     * @param day Эпохальный день
+     * @return Подпись даты вида "18.10.2026"
+     */
+    static String dateLabel(int day) {
+        return Dates.dayOfMonth(day) + "." + (Dates.month(day) + 1) + "." + Dates.year(day);
+    }
+
+    /** @return Нет ли в этот день уроков? */
+    boolean isEmpty() {
+        return names.length == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DayModel)) return false;
+        DayModel other = (DayModel)o;
+        return day == other.day && dateLabel.equals(other.dateLabel)
+                && Arrays.equals(slotLabels, other.slotLabels) && Arrays.equals(names, other.names);
+    }
+
+    @Override
+    public int hashCode() {
+        return day * 31 + Arrays.hashCode(names);
+    }
+}
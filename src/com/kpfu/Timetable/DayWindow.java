@@ -0,0 +1,177 @@
+package com.kpfu.Timetable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Окно дней, показываемых в списке: непрерывный диапазон дат и готовые строки для дней с уроками.
+ * <br>Окно расширяется порциями в обе стороны, а при превышении предела обрезается с противоположного края,
+ * так что память и количество строк не растут, как бы далеко ни прокручивал пользователь.
+ * <br>Не зависит от Android.
+ */
+class DayWindow {
+
+    /** Сколько порций подряд без уроков (каникулы) можно пролистать за одно расширение */
+    static final int MAX_EMPTY_PORTIONS = 8;
+
+    private Timetable timetable; // null, пока окно показывает дни из кэша (см. DayCache)
+    private final int maxDays; // предел длины диапазона в днях
+    private int from = 0, to = -1; // покрытый диапазон (включительно); from > to - окно пусто
+    private final ArrayList<DayModel> rows = new ArrayList<DayModel>(); // дни с уроками по возрастанию
+
+    /**
+     * Конструктор
+     * @param timetable Расписание (null - дни пока придут только через insert, например из DayCache)
+     * @param maxDays Предел длины окна в днях
+     */
+    DayWindow(Timetable timetable, int maxDays) {
+        this.timetable = timetable;
+        this.maxDays = maxDays;
+    }
+
+    /**
+     * Подключает загруженное расписание к окну, показанному из кэша. Расширять окно можно только после этого.
+     * @param timetable Расписание
+     */
+    void setTimetable(Timetable timetable) {
+        this.timetable = timetable;
+    }
+
+    /** @return Количество строк (дней с уроками) */
+    int size() {
+        return rows.size();
+    }
+
+    /** @return Строка по номеру */
+    DayModel get(int position) {
+        return rows.get(position);
+    }
+
+    /** @return Первый покрытый эпохальный день */
+    int from() {
+        return from;
+    }
+
+    /** @return Последний покрытый эпохальный день */
+    int to() {
+        return to;
+    }
+
+    /** @return Пусто ли окно (не покрыто ни одного дня)? */
+    boolean isEmpty() {
+        return from > to;
+    }
+
+    /**
+     * Добавляет готовую порцию дней (например, от TimetableLoader). Порция должна примыкать к окну или перекрывать его.
+     * <br>Дни, которые уже есть в окне, заменяются новыми, если отличаются (например, показанные из DayCache).
+     * @param days Дни порции по возрастанию
+     * @param anchorDay День, положение которого на экране нужно сохранить (первая видимая строка)
+     * @return Сколько строк добавлено перед anchorDay (отрицательное число - сколько убрано)
+     */
+    int insert(List<DayModel> days, int anchorDay) {
+        if (days.isEmpty()) return 0;
+        int before = 0;
+        for (DayModel day : days) {
+            int position = position(day.day);
+            boolean present = position < rows.size() && rows.get(position).day == day.day;
+            if (!isEmpty() && day.day >= from && day.day <= to) { // уже покрыт - сверяем
+                if (present && day.isEmpty()) {
+                    rows.remove(position);
+                    if (day.day < anchorDay) before--;
+                } else if (present) {
+                    if (!rows.get(position).equals(day)) rows.set(position, day);
+                } else if (!day.isEmpty()) {
+                    rows.add(position, day);
+                    if (day.day < anchorDay) before++;
+                }
+                continue;
+            }
+            if (!day.isEmpty()) {
+                rows.add(position, day);
+                if (day.day < anchorDay) before++;
+            }
+        }
+        int first = days.get(0).day, last = days.get(days.size() - 1).day;
+        if (isEmpty()) {
+            from = first;
+            to = last;
+        } else {
+            from = Math.min(from, first);
+            to = Math.max(to, last);
+        }
+        return before;
+    }
+
+    /**
+     * Расширяет окно в будущее на порцию дней (и дальше, пока не встретятся уроки), обрезая прошлое сверх предела.
+     * Видимые строки не обрезаются, даже если окно из-за этого длиннее предела.
+     * @param portion Размер порции в днях
+     * @param firstShown Эпохальный день первой видимой строки
+     * @return Сколько строк убрано из начала; -1, если дней с уроками не нашлось и окно не изменилось
+     */
+    int extendForward(int portion, int firstShown) {
+        int start = to, added = 0;
+        for (int i = 0; i < MAX_EMPTY_PORTIONS && added == 0; i++)
+            for (int j = 0; j < portion; j++) {
+                DayModel day = DayModel.of(timetable, ++to);
+                if (!day.isEmpty()) {
+                    rows.add(day);
+                    added++;
+                }
+            }
+        if (added == 0) {
+            to = start;
+            return -1;
+        }
+        int removed = 0;
+        while (to - from + 1 > maxDays && from < firstShown) {
+            if (!rows.isEmpty() && rows.get(0).day == from) {
+                rows.remove(0);
+                removed++;
+            }
+            from++;
+        }
+        return removed;
+    }
+
+    /**
+     * Расширяет окно в прошлое на порцию дней (и дальше, пока не встретятся уроки), но не раньше первого дня расписания;
+     * будущее сверх предела обрезается. Видимые строки не обрезаются, даже если окно из-за этого длиннее предела.
+     * @param portion Размер порции в днях
+     * @param lastShown Эпохальный день последней видимой строки
+     * @return Сколько строк добавлено в начало; 0 - окно не изменилось
+     */
+    int extendBackward(int portion, int lastShown) {
+        int start = from, added = 0;
+        for (int i = 0; i < MAX_EMPTY_PORTIONS && added == 0 && from > timetable.firstDay; i++)
+            for (int j = 0; j < portion && from > timetable.firstDay; j++) {
+                DayModel day = DayModel.of(timetable, --from);
+                if (!day.isEmpty()) {
+                    rows.add(0, day);
+                    added++;
+                }
+            }
+        if (added == 0) {
+            from = start;
+            return 0;
+        }
+        while (to - from + 1 > maxDays && to > lastShown) {
+            int last = rows.size() - 1;
+            if (last >= 0 && rows.get(last).day == to) rows.remove(last);
+            to--;
+        }
+        return added;
+    }
+
+    /** @return Позиция, на которую встаёт строка дня, чтобы порядок сохранился */
+    private int position(int day) {
+        int low = 0, high = rows.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (rows.get(middle).day < day) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,84 @@
+package com.kpfu.Timetable;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Оценка объёма памяти, занимаемого расписаниями.
+ * <br>Считаются массивы дней, уроки и строки; каждый объект учитывается один раз, сколько бы ссылок на него ни было.
+ * Размеры объектов оцениваются для 32-битной виртуальной машины (заголовок 8 байт, ссылка 4 байта,
+ * выравнивание по 8 байт), так что результат - оценка, а не точное измерение.
+ */
+class Footprint {
+
+    private static final int HEADER = 8;
+    private static final int REFERENCE = 4;
+    private static final int ARRAY_HEADER = 12;
+    private static final int STRING = HEADER + REFERENCE + 3 * 4; // value, offset, count, hash
+    private static final int LESSON = HEADER + Lesson.FIELDS * REFERENCE;
+
+    /** Количество дней (массивов уроков) */
+    int days = 0;
+    /** Количество непустых ячеек уроков */
+    int slots = 0;
+    /** Количество различных объектов Lesson */
+    int lessons = 0;
+    /** Количество различных объектов String */
+    int strings = 0;
+    /** Суммарная длина различных строк в символах */
+    long chars = 0;
+    /** Оценка занимаемой памяти в байтах */
+    long bytes = 0;
+
+    private Footprint() { }
+
+    /**
+     * Оценивает память, занимаемую расписаниями
+     * <br>Особые дни, ещё не прочитанные из файла (см. DayBlocks), не учитываются - память они не занимают.
+     * @param timetables Расписания (общие уроки и строки учитываются один раз на все)
+     * @return Отчёт
+     */
+    static Footprint measure(Timetable... timetables) {
+        Footprint result = new Footprint();
+        Map<Object, Object> seen = new IdentityHashMap<Object, Object>();
+        for (Timetable timetable : timetables)
+            synchronized (timetable) {
+                for (Lesson[] day : timetable.lessons)
+                    result.add(day, seen);
+                for (int i = 0; i < timetable.specialDays.capacity(); i++)
+                    if (timetable.specialDays.isUsed(i))
+                        result.add(timetable.specialDays.valueAt(i), seen);
+            }
+        return result;
+    }
+
+    private void add(Lesson[] day, Map<Object, Object> seen) {
+        if (day == null || seen.put(day, day) != null) return;
+        days++;
+        bytes += align(ARRAY_HEADER + REFERENCE * day.length);
+        for (Lesson lesson : day) {
+            if (lesson == null) continue;
+            slots++;
+            if (seen.put(lesson, lesson) != null) continue;
+            lessons++;
+            bytes += align(LESSON);
+            for (int f = 0; f < Lesson.FIELDS; f++) {
+                String value = lesson.getField(f);
+                if (value == null || seen.put(value, value) != null) continue;
+                strings++;
+                chars += value.length();
+                bytes += align(STRING) + align(ARRAY_HEADER + 2 * value.length());
+            }
+        }
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    @Override
+    public String toString() {
+        return "days=" + days + ", slots=" + slots + ", lessons=" + lessons + ", strings=" + strings
+                + ", chars=" + chars + ", ~" + bytes + " bytes";
+    }
+}
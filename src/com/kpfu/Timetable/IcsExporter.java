@@ -0,0 +1,233 @@
+package com.kpfu.Timetable;
+
+import java.io.*;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Выгрузка расписания в iCalendar (RFC 5545, файл .ics) для календарей.
+ * <br>Каждая непустая ячейка недельной сетки становится одним повторяющимся событием (RRULE);
+ * дни, где особый день или правило замены эту ячейку меняет, исключаются из повторения (EXDATE),
+ * а уроки особых и перенесённых дней выгружаются отдельными событиями. События пишутся в поток по мере обхода, без накопления в памяти,
+ * так что память не зависит ни от длины диапазона, ни от числа групп.
+ * <pre>
+ * IcsExporter ics = new IcsExporter(writer);
+ * ics.begin();
+ * ics.group("09-101", timetable, from, to); // сколько угодно групп
+ * ics.end();
+ * </pre>
+ * Время уроков берётся из расписания звонков каждой группы (Timetable.getBells);
+ * уроки, для которых там нет времени, выгружаются событиями на весь день.
+ */
+class IcsExporter {
+
+    /** Часовой пояс Казани */
+    static final String TZID = "Europe/Moscow";
+
+    private static final int FOLD = 75; // предел длины строки в байтах (RFC 5545, 3.1)
+
+    private final Writer out;
+    private BellSchedule bells; // звонки выгружаемой группы
+    private final String stamp; // DTSTAMP всех событий выгрузки
+
+    /**
+     * Конструктор
+     * @param out Куда писать (лучше буферизованный, в UTF-8). Не закрывается.
+     */
+    IcsExporter(Writer out) {
+        this.out = out;
+        Calendar now = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        stamp = date(Dates.epochDay(now.get(Calendar.YEAR), now.get(Calendar.MONTH), now.get(Calendar.DAY_OF_MONTH)))
+                + 'T' + two(now.get(Calendar.HOUR_OF_DAY)) + two(now.get(Calendar.MINUTE)) + two(now.get(Calendar.SECOND)) + 'Z';
+    }
+
+    /**
+     * Выгружает одну группу в файл целиком
+     * @param timetable Расписание
+     * @param group Группа
+     * @param from Первый эпохальный день
+     * @param to Последний эпохальный день (включительно)
+     * @param stream Поток. Не закрывается.
+     * @throws IOException Ошибка ввода/вывода
+     */
+    static void export(Timetable timetable, String group, int from, int to, OutputStream stream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+        IcsExporter ics = new IcsExporter(writer);
+        ics.begin();
+        ics.group(group, timetable, from, to);
+        ics.end();
+        writer.flush();
+    }
+
+    /**
+     * Начинает календарь
+     * @throws IOException Ошибка ввода/вывода
+     */
+    void begin() throws IOException {
+        line("BEGIN:VCALENDAR");
+        line("VERSION:2.0");
+        line("PRODID:-//KPFU//Timetable//RU");
+        line("CALSCALE:GREGORIAN");
+        line("BEGIN:VTIMEZONE"); // в Москве нет перехода на летнее время с 2014 года
+        line("TZID:" + TZID);
+        line("BEGIN:STANDARD");
+        line("DTSTART:19700101T000000");
+        line("TZOFFSETFROM:+0300");
+        line("TZOFFSETTO:+0300");
+        line("TZNAME:MSK");
+        line("END:STANDARD");
+        line("END:VTIMEZONE");
+    }
+
+    /**
+     * Заканчивает календарь
+     * @throws IOException Ошибка ввода/вывода
+     */
+    void end() throws IOException {
+        line("END:VCALENDAR");
+        out.flush();
+    }
+
+    /**
+     * Выгружает уроки группы за диапазон дат
+     * @param group Группа (входит в UID событий)
+     * @param timetable Расписание
+     * @param from Первый эпохальный день
+     * @param to Последний эпохальный день (включительно)
+     * @throws IOException Ошибка ввода/вывода
+     */
+    void group(String group, Timetable timetable, int from, int to) throws IOException {
+        bells = timetable.getBells();
+        int period = timetable.doubleWeek ? 14 : 7;
+        int start = Math.max(from, timetable.firstDay);
+        // Недельная сетка: первая подходящая дата каждой строки, дальше - через period дней
+        for (int i = 0; i < period && start + i <= to; i++) {
+            int first = start + i;
+            int row = timetable.rowOf(first);
+            Lesson[] lessons = timetable.lessons[row];
+            if (lessons == null) continue;
+            int count = (to - first) / period + 1;
+            for (int slot = 0; slot < lessons.length; slot++) {
+                Lesson lesson = lessons[slot];
+                if (lesson == null) continue;
+                event(group + "-r" + row + "-s" + slot, first, slot, lesson);
+                if (count > 1)
+                    line("RRULE:FREQ=WEEKLY;INTERVAL=" + period / 7 + ";COUNT=" + count);
+                for (int day = first; day <= to; day += period) { // особые дни и правила замены
+                    Lesson[] actual = timetable.resolve(day);
+                    if (actual != lessons && (actual == null || !same(actual[slot], lesson)))
+                        line("EXDATE" + when(day, slot));
+                }
+                line("END:VEVENT");
+            }
+        }
+        // Особые дни: только те уроки, которых нет в сетке на ту же дату
+        timetable.loadAll();
+        DayMap special = timetable.specialDays;
+        for (int i = 0; i < special.capacity(); i++) {
+            if (!special.isUsed(i)) continue;
+            int day = special.keyAt(i);
+            if (day >= from && day <= to) changed(group, timetable, day, special.valueAt(i));
+        }
+        // Перенесённые правилами дни (отменённые уже исключены через EXDATE)
+        OverrideRules rules = timetable.getRules();
+        for (int r = 0; r < rules.size(); r++) {
+            OverrideRule rule = rules.get(r);
+            if (rule.kind != OverrideRule.FOLLOW || rule.row >= timetable.lessons.length) continue;
+            for (int day = Math.max(from, rule.from); day <= Math.min(to, rule.to); day++)
+                if (!special.containsKey(day) && timetable.ruleAt(day) == rule)
+                    changed(group, timetable, day, timetable.lessons[rule.row]);
+        }
+    }
+
+    /** Пишет уроки изменённого дня, которых нет в сетке на ту же дату */
+    private void changed(String group, Timetable timetable, int day, Lesson[] lessons) throws IOException {
+        int row = timetable.rowOf(day);
+        Lesson[] grid = row < 0 ? null : timetable.lessons[row];
+        for (int slot = 0; slot < lessons.length; slot++) {
+            Lesson lesson = lessons[slot];
+            if (lesson == null || (grid != null && same(grid[slot], lesson))) continue;
+            event(group + "-" + date(day) + "-s" + slot, day, slot, lesson);
+            line("END:VEVENT");
+        }
+    }
+
+    /** Пишет начало события (без END:VEVENT) */
+    private void event(String uid, int day, int slot, Lesson lesson) throws IOException {
+        line("BEGIN:VEVENT");
+        line("UID:" + escape(uid) + "@timetable.kpfu");
+        line("DTSTAMP:" + stamp);
+        if (bells.has(slot)) {
+            line("DTSTART" + when(day, slot));
+            line("DTEND;TZID=" + TZID + ':' + date(day) + 'T' + time(bells.end(slot)));
+        } else {
+            line("DTSTART;VALUE=DATE:" + date(day));
+        }
+        String summary = lesson.fullName != null ? lesson.fullName : lesson.shortName;
+        if (summary != null) line("SUMMARY:" + escape(summary));
+        if (lesson.room != null || lesson.building != null)
+            line("LOCATION:" + escape(lesson.building == null ? lesson.room
+                    : lesson.room == null ? lesson.building : lesson.building + ", " + lesson.room));
+        StringBuilder description = new StringBuilder();
+        if (lesson.type != null) description.append(lesson.type);
+        if (lesson.teacher != null) description.append(description.length() > 0 ? "\n" : "").append(lesson.teacher);
+        if (lesson.comment != null) description.append(description.length() > 0 ? "\n" : "").append(lesson.comment);
+        if (description.length() > 0) line("DESCRIPTION:" + escape(description.toString()));
+    }
+
+    /** @return Параметр и значение начала урока, например ";TZID=Europe/Moscow:20260901T083000" */
+    private String when(int day, int slot) {
+        if (!bells.has(slot)) return ";VALUE=DATE:" + date(day);
+        return ";TZID=" + TZID + ':' + date(day) + 'T' + time(bells.start(slot));
+    }
+
+    private static boolean same(Lesson a, Lesson b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    private static String date(int day) {
+        int year = Dates.year(day), month = Dates.month(day) + 1, dayOfMonth = Dates.dayOfMonth(day);
+        return year + two(month) + two(dayOfMonth);
+    }
+
+    private static String time(int minutes) {
+        return two(minutes / 60) + two(minutes % 60) + "00";
+    }
+
+    private static String two(int value) {
+        return value < 10 ? "0" + value : Integer.toString(value);
+    }
+
+    /** Экранирует текст значения (RFC 5545, 3.3.11) */
+    static String escape(String value) {
+        StringBuilder result = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': result.append("\\\\"); break;
+                case ';': result.append("\\;"); break;
+                case ',': result.append("\\,"); break;
+                case '\n': result.append("\\n"); break;
+                case '\r': break;
+                default: result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /** Пишет строку, перенося её по FOLD байт UTF-8 (не разрывая символы) */
+    private void line(String text) throws IOException {
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int size = c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isHighSurrogate(c) ? 4 : Character.isLowSurrogate(c) ? 0 : 3;
+            if (bytes + size > FOLD) {
+                out.write("\r\n ");
+                bytes = 1;
+            }
+            out.write(c);
+            bytes += size;
+        }
+        out.write("\r\n");
+    }
+}
@@ -1,10 +1,9 @@
 package com.kpfu.Timetable;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Field;
 
 /**
  * Структура, содержащая данные о конкретном уроке
@@ -25,7 +24,10 @@ class Lesson {
     /** Любая дополнительная инфа (отметка о контрольной, коротком дне, д/з, напоминалка и т. п.) */
     String comment = null;
 
-    private final char split = (char)31; // разделитель. В нормальном тексте встречаться не должен
+    /** Количество полей (в порядке сериализации) */
+    static final int FIELDS = 7;
+
+    private static final char split = (char)31; // разделитель. В нормальном тексте встречаться не должен
 
     /**
      * Пустой конструктор. Объект занимает минимум памяти, все поля равны null.
@@ -58,18 +60,23 @@ class Lesson {
         this.comment = comment;
     }
 
+    /**
+     * @return Копия урока с теми же значениями полей
+     */
+    Lesson copy() {
+        return new Lesson(fullName, shortName, building, room, teacher, type, comment);
+    }
+
     /**
      * Преобразовывает все записи из некой кодировки в UTF-8
      * @param currentEncoding Текущая кодировка
      * @throws UnsupportedEncodingException Указанной кодировки не существует (или она не поддерживается)
      */
     void fixEncoding(String currentEncoding) throws UnsupportedEncodingException {
-        for (Field field : this.getClass().getFields())
-            if (field.getType().getSimpleName().equals("String")) try {
-                String value = (String)field.get(this);
-                value = new String(value.getBytes(currentEncoding), "UTF-8");
-                field.set(this, value);
-            } catch (IllegalAccessException e) { } // Ну коли так, то ничего не трогать
+        for (int field = 0; field < FIELDS; field++) {
+            String value = getField(field);
+            if (value != null) setField(field, new String(value.getBytes(currentEncoding), "UTF-8"));
+        }
     }
 
     /**
@@ -97,50 +104,84 @@ class Lesson {
 
     /**
      * Считывает поля из потока. Предполагается, что поток уже открыт.
+     * <br>Поток лучше передавать буферизованным: чтение идёт посимвольно.
      * @param stream Указатель на поток
      * @param outerSplit Разделитель записей
      * @throws IOException Ошибка ввода/вывода (либо поток не создан, либо файл недоступен)
      */
-    static Lesson read(InputStreamReader stream, char outerSplit) throws IOException {
+    static Lesson read(Reader stream, char outerSplit) throws IOException {
         Lesson result = new Lesson();
+        StringBuilder value = new StringBuilder();
         int field = 0;
         int c = stream.read();
         while (c != -1 && (char)c != outerSplit) {
-            if ((char)c == result.split) field++;
-            else {
-                switch (field) {
-                    case 0:
-                        if (result.fullName == null) result.fullName = "";
-                        result.fullName += (char)c;
-                        break;
-                    case 1:
-                        if (result.shortName == null) result.shortName = "";
-                        result.shortName += (char)c;
-                        break;
-                    case 2:
-                        if (result.building == null) result.building = "";
-                        result.building += (char)c;
-                        break;
-                    case 3:
-                        if (result.room == null) result.room = "";
-                        result.room += (char)c;
-                        break;
-                    case 4:
-                        if (result.teacher == null) result.teacher = "";
-                        result.teacher += (char)c;
-                        break;
-                    case 5:
-                        if (result.type == null) result.type = "";
-                        result.type += (char)c;
-                        break;
-                    case 6:
-                        if (result.comment == null) result.comment = "";
-                        result.comment += (char)c;
-                        break;
-                }
+            if ((char)c == split) {
+                result.setField(field++, value.length() == 0 ? null : value.toString());
+                value.setLength(0);
             }
+            else value.append((char)c);
             c = stream.read();
         }
         return result;
     }
+
+    /**
+     * Уроки равны, если равны все их поля. Нужно для LessonPool.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Lesson)) return false;
+        Lesson other = (Lesson)o;
+        for (int f = 0; f < FIELDS; f++) {
+            String a = getField(f), b = other.getField(f);
+            if (a == null ? b != null : !a.equals(b)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int f = 0; f < FIELDS; f++) {
+            String value = getField(f);
+            hash = 31 * hash + (value == null ? 0 : value.hashCode());
+        }
+        return hash;
+    }
+
+    /**
+     * Возвращает значение поля по его номеру в порядке сериализации
+     * @param field Номер поля (0 - fullName, 6 - comment)
+     * @return Значение поля
+     */
+    String getField(int field) {
+        switch (field) {
+            case 0: return fullName;
+            case 1: return shortName;
+            case 2: return building;
+            case 3: return room;
+            case 4: return teacher;
+            case 5: return type;
+            case 6: return comment;
+            default: return null;
+        }
+    }
+
+    /**
+     * Устанавливает значение поля по его номеру в порядке сериализации
+     * @param field Номер поля (0 - fullName, 6 - comment)
+     * @param value Значение
+     */
+    void setField(int field, String value) {
+        switch (field) {
+            case 0: fullName = value; break;
+            case 1: shortName = value; break;
+            case 2: building = value; break;
+            case 3: room = value; break;
+            case 4: teacher = value; break;
+            case 5: type = value; break;
+            case 6: comment = value; break;
+        }
+    }
 }
@@ -0,0 +1,84 @@
+package com.kpfu.Timetable;
+
+/**
+ * Ленивый обход уроков расписания за диапазон дат.
+ * <br>Пустые ячейки и дни без уроков пропускаются; сам обход ничего не выделяет в памяти.
+ * Использование:
+ * <pre>
+ * LessonCursor cursor = timetable.lessonsBetween(from, to);
+ * while (cursor.next())
+ *     use(cursor.day(), cursor.slot(), cursor.lesson());
+ * </pre>
+ * Для параллельной обработки остаток диапазона можно делить пополам (trySplit) и обходить части в разных потоках.
+ */
+class LessonCursor {
+
+    private final Timetable timetable;
+    private int day; // текущий эпохальный день
+    private int end; // первый день после диапазона
+    private Lesson[] lessons = null; // уроки текущего дня
+    private int slot = -1; // текущая ячейка
+
+    /**
+     * Конструктор
+     * @param timetable Расписание
+     * @param from Первый эпохальный день диапазона
+     * @param to Последний эпохальный день диапазона (включительно)
+     */
+    LessonCursor(Timetable timetable, int from, int to) {
+        this.timetable = timetable;
+        this.day = from - 1; // первый next() перейдёт на from
+        this.end = to + 1;
+    }
+
+    /**
+     * Переходит к следующему уроку
+     * @return Есть ли ещё уроки в диапазоне?
+     */
+    boolean next() {
+        while (true) {
+            if (lessons != null)
+                while (++slot < lessons.length)
+                    if (lessons[slot] != null) return true;
+            if (day + 1 >= end) {
+                lessons = null;
+                return false;
+            }
+            lessons = timetable.lessonsOn(++day);
+            slot = -1;
+        }
+    }
+
+    /** @return Эпохальный день текущего урока */
+    int day() {
+        return day;
+    }
+
+    /** @return Номер ячейки текущего урока (с нуля) */
+    int slot() {
+        return slot;
+    }
+
+    /** @return Текущий урок */
+    Lesson lesson() {
+        return lessons[slot];
+    }
+
+    /** @return Сколько дней ещё не начато */
+    int remainingDays() {
+        return end - day - 1;
+    }
+
+    /**
+     * Отделяет вторую половину ещё не начатых дней в отдельный обход; этот обход заканчивается перед ней
+     * @return Обход второй половины или null, если делить уже нечего
+     */
+    LessonCursor trySplit() {
+        int half = remainingDays() / 2;
+        if (half < 1) return null;
+        int middle = end - half;
+        LessonCursor suffix = new LessonCursor(timetable, middle, end - 1);
+        end = middle;
+        return suffix;
+    }
+}
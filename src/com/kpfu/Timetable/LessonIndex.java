@@ -0,0 +1,289 @@
+package com.kpfu.Timetable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Обратный индекс по полям уроков сразу для многих расписаний (групп):
+ * "где преподаватель X на этой неделе", "что в аудитории 410 в четверг".
+ * <br>Для каждого значения поля хранится список вхождений (группа, строка сетки или особый день, номер урока).
+ * Индекс подписывается на расписания (см. Timetable.Listener) и обновляется при каждой правке,
+ * так что запрос не перебирает все расписания целиком.
+ * <br>Значения сравниваются без учёта регистра и пробелов по краям.
+ */
+class LessonIndex implements Timetable.Listener {
+
+    /** Поле "название урока" (номера полей - как в Lesson.getField) */
+    static final int SUBJECT = 0;
+    /** Поле "здание" */
+    static final int BUILDING = 2;
+    /** Поле "аудитория" */
+    static final int ROOM = 3;
+    /** Поле "преподаватель" */
+    static final int TEACHER = 4;
+
+    private static final int[] INDEXED = {SUBJECT, BUILDING, ROOM, TEACHER};
+
+    /**
+     * Вхождение значения в расписание группы
+     */
+    static class Posting {
+        /** Группа */
+        final String group;
+        /** Расписание группы */
+        final Timetable timetable;
+        /** true - строка недельной сетки, false - особый день */
+        final boolean weekly;
+        /** Номер строки сетки (weekly) или эпохальный день (особый день) */
+        final int day;
+        /** Номер урока в дне (с нуля) */
+        final int slot;
+        /** Урок (вхождения пересоздаются при каждой правке дня, так что урок всегда текущий) */
+        final Lesson lesson;
+
+        Posting(String group, Timetable timetable, boolean weekly, int day, int slot, Lesson lesson) {
+            this.group = group;
+            this.timetable = timetable;
+            this.weekly = weekly;
+            this.day = day;
+            this.slot = slot;
+            this.lesson = lesson;
+        }
+    }
+
+    /**
+     * Урок, найденный на конкретную дату
+     */
+    static class Occurrence {
+        /** Группа */
+        final String group;
+        /** Эпохальный день */
+        final int day;
+        /** Номер урока в дне (с нуля) */
+        final int slot;
+        /** Урок */
+        final Lesson lesson;
+
+        Occurrence(String group, int day, int slot, Lesson lesson) {
+            this.group = group;
+            this.day = day;
+            this.slot = slot;
+            this.lesson = lesson;
+        }
+    }
+
+    private static final Comparator<Occurrence> BY_TIME = new Comparator<Occurrence>() {
+        public int compare(Occurrence a, Occurrence b) {
+            if (a.day != b.day) return a.day < b.day ? -1 : 1;
+            if (a.slot != b.slot) return a.slot < b.slot ? -1 : 1;
+            return a.group.compareTo(b.group);
+        }
+    };
+
+    // ключ - номер поля и нормализованное значение (см. key)
+    private final HashMap<String, ArrayList<Posting>> postings = new HashMap<String, ArrayList<Posting>>();
+    private final HashMap<String, Timetable> groups = new HashMap<String, Timetable>();
+    private final HashMap<Timetable, String> owners = new HashMap<Timetable, String>();
+
+    /**
+     * Добавляет расписание группы в индекс и подписывается на его изменения.
+     * Если группа уже была в индексе, прежнее её расписание заменяется (удобно для снимков SharedTimetable).
+     * @param group Группа
+     * @param timetable Расписание
+     */
+    void add(String group, Timetable timetable) {
+        remove(group);
+        synchronized (timetable) { // порядок блокировок как при правке: сначала расписание, потом индекс
+            synchronized (this) {
+                timetable.loadAll(); // дальше особые дни берутся прямо из specialDays
+                timetable.addListener(this);
+                groups.put(group, timetable);
+                owners.put(timetable, group);
+                for (int row = 0; row < timetable.lessons.length; row++)
+                    addDay(group, timetable, true, row, timetable.lessons[row]);
+                DayMap special = timetable.specialDays;
+                for (int i = 0; i < special.capacity(); i++)
+                    if (special.isUsed(i))
+                        addDay(group, timetable, false, special.keyAt(i), special.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * Убирает группу из индекса и отписывается от её расписания
+     * @param group Группа
+     */
+    void remove(String group) {
+        Timetable timetable;
+        synchronized (this) {
+            timetable = groups.get(group);
+        }
+        if (timetable == null) return;
+        synchronized (timetable) {
+            synchronized (this) {
+                if (groups.get(group) != timetable) return; // уже заменили
+                timetable.removeListener(this);
+                groups.remove(group);
+                owners.remove(timetable);
+                Iterator<ArrayList<Posting>> lists = postings.values().iterator();
+                while (lists.hasNext()) {
+                    ArrayList<Posting> list = lists.next();
+                    for (int i = list.size() - 1; i >= 0; i--)
+                        if (list.get(i).timetable == timetable) removeAt(list, i);
+                    if (list.isEmpty()) lists.remove();
+                }
+            }
+        }
+    }
+
+    /** @return Количество групп в индексе */
+    synchronized int groupCount() {
+        return groups.size();
+    }
+
+    /**
+     * Возвращает все вхождения значения поля: строки недельной сетки и особые дни
+     * @param field Поле (SUBJECT, BUILDING, ROOM, TEACHER)
+     * @param value Значение
+     * @return Вхождения (копия списка, порядок не определён)
+     */
+    synchronized List<Posting> postings(int field, String value) {
+        ArrayList<Posting> list = postings.get(key(field, value));
+        return list == null ? new ArrayList<Posting>() : new ArrayList<Posting>(list);
+    }
+
+    /**
+     * Находит уроки со значением поля в диапазоне дат с учётом особых дней и правил замены
+     * @param field Поле (SUBJECT, BUILDING, ROOM, TEACHER)
+     * @param value Значение
+     * @param from Первый эпохальный день
+     * @param to Последний эпохальный день (включительно)
+     * @return Уроки по возрастанию даты и номера урока
+     */
+    List<Occurrence> find(int field, String value, int from, int to) {
+        ArrayList<Occurrence> result = new ArrayList<Occurrence>();
+        List<Posting> list = postings(field, value); // копия: дальше расписания читаются без блокировки индекса
+        for (Posting posting : list) {
+            if (!posting.weekly) {
+                if (posting.day >= from && posting.day <= to)
+                    result.add(new Occurrence(posting.group, posting.day, posting.slot, posting.lesson));
+                continue;
+            }
+            synchronized (posting.timetable) { // блокировка индекса не удерживается - порядок "расписание, индекс" не нарушен
+                expand(posting, from, to, result);
+            }
+        }
+        Collections.sort(result, BY_TIME);
+        return result;
+    }
+
+    /** Раскладывает вхождение в строку сетки по датам диапазона. Вызывается под блокировкой расписания. */
+    private static void expand(Posting posting, int from, int to, List<Occurrence> result) {
+        Timetable timetable = posting.timetable;
+        Lesson[] row = timetable.lessons[posting.day];
+        if (row == null || posting.slot >= row.length || row[posting.slot] != posting.lesson)
+            return; // строку уже поменяли; новое вхождение в копию не попало
+        int period = timetable.doubleWeek ? 14 : 7;
+        int day = Math.max(from, timetable.firstDay);
+        for (int i = 0; i < period && day <= to && timetable.rowOf(day) != posting.day; i++)
+            day++;
+        for (; day <= to; day += period) // особый день и правило замены перекрывают сетку
+            if (!timetable.specialDays.containsKey(day) && timetable.ruleAt(day) == null)
+                result.add(new Occurrence(posting.group, day, posting.slot, posting.lesson));
+        OverrideRules rules = timetable.getRules();
+        for (int r = 0; r < rules.size(); r++) { // дни, перенесённые на эту строку
+            OverrideRule rule = rules.get(r);
+            if (rule.kind != OverrideRule.FOLLOW || rule.row != posting.day) continue;
+            for (day = Math.max(from, rule.from); day <= Math.min(to, rule.to); day++)
+                if (!timetable.specialDays.containsKey(day) && timetable.ruleAt(day) == rule)
+                    result.add(new Occurrence(posting.group, day, posting.slot, posting.lesson));
+        }
+    }
+
+    /**
+     * Строка сетки изменилась - переиндексируем её
+     */
+    public synchronized void rowChanged(Timetable timetable, int row, Lesson[] before, Lesson[] after) {
+        String group = owners.get(timetable);
+        if (group == null) return;
+        removeDay(timetable, true, row, before);
+        addDay(group, timetable, true, row, after);
+    }
+
+    /**
+     * Особый день изменился - переиндексируем его
+     */
+    public synchronized void dayChanged(Timetable timetable, int day, Lesson[] before, Lesson[] after) {
+        String group = owners.get(timetable);
+        if (group == null) return;
+        removeDay(timetable, false, day, before);
+        addDay(group, timetable, false, day, after);
+    }
+
+    private void addDay(String group, Timetable timetable, boolean weekly, int day, Lesson[] lessons) {
+        if (lessons == null) return;
+        for (int slot = 0; slot < lessons.length; slot++) {
+            Lesson lesson = lessons[slot];
+            if (lesson == null) continue;
+            Posting posting = null;
+            for (int field : INDEXED) {
+                String value = lesson.getField(field);
+                if (value == null) continue;
+                if (posting == null) posting = new Posting(group, timetable, weekly, day, slot, lesson); // общее для всех полей
+                String key = key(field, value);
+                ArrayList<Posting> list = postings.get(key);
+                if (list == null) postings.put(key, list = new ArrayList<Posting>(4));
+                list.add(posting);
+            }
+        }
+    }
+
+    private void removeDay(Timetable timetable, boolean weekly, int day, Lesson[] lessons) {
+        if (lessons == null) return;
+        for (int slot = 0; slot < lessons.length; slot++) {
+            Lesson lesson = lessons[slot];
+            if (lesson == null) continue;
+            for (int field : INDEXED) {
+                String value = lesson.getField(field);
+                if (value == null) continue;
+                String key = key(field, value);
+                ArrayList<Posting> list = postings.get(key);
+                if (list == null) continue;
+                for (int i = list.size() - 1; i >= 0; i--) {
+                    Posting posting = list.get(i);
+                    if (posting.timetable == timetable && posting.weekly == weekly
+                            && posting.day == day && posting.slot == slot) {
+                        removeAt(list, i);
+                        break;
+                    }
+                }
+                if (list.isEmpty()) postings.remove(key);
+            }
+        }
+    }
+
+    /** Удаление без сдвига: порядок вхождений не важен */
+    private static void removeAt(ArrayList<Posting> list, int i) {
+        int last = list.size() - 1;
+        list.set(i, list.get(last));
+        list.remove(last);
+    }
+
+    private static String key(int field, String value) {
+        return field + ":" + value.trim().toLowerCase(Locale.ENGLISH); // не зависит от языка устройства
+    }
+
+    @Override
+    public synchronized String toString() {
+        int count = 0;
+        for (Map.Entry<String, ArrayList<Posting>> entry : postings.entrySet())
+            count += entry.getValue().size();
+        return "LessonIndex{groups=" + groups.size() + ", values=" + postings.size() + ", postings=" + count + "}";
+    }
+}
@@ -0,0 +1,142 @@
+package com.kpfu.Timetable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Пул уроков и строк: одинаковые уроки (и одинаковые названия, преподаватели, здания) хранятся в одном экземпляре.
+ * <br>Так же общими становятся и целые дни: одинаковые массивы уроков (строки сетки, особые дни, дни разных групп)
+ * хранятся один раз, а день без уроков - это всегда Timetable.EMPTY_DAY. Каждый различный день
+ * по-прежнему занимает полный массив из MAX_PER_DAY ячеек: разреженный вид у дней только в файле (см. BinaryFormat).
+ * <br>Ссылки слабые, так что записи, на которые больше никто не ссылается, освобождаются сборщиком мусора.
+ * <br>Уроки из пула общие, поэтому менять их поля после добавления нельзя - только заменять урок целиком.
+ */
+class LessonPool {
+
+    /** Общий пул для всех расписаний приложения */
+    static final LessonPool SHARED = new LessonPool();
+
+    private final Map<String, WeakReference<String>> strings = new WeakHashMap<String, WeakReference<String>>();
+    private final Map<Lesson, WeakReference<Lesson>> lessons = new WeakHashMap<Lesson, WeakReference<Lesson>>();
+    private final HashMap<DayRef, DayRef> days = new HashMap<DayRef, DayRef>();
+    private final ReferenceQueue<Lesson[]> clearedDays = new ReferenceQueue<Lesson[]>();
+
+    /**
+     * Возвращает общий экземпляр строки
+     * @param value Строка (может быть null)
+     * @return Равная строка из пула
+     */
+    synchronized String intern(String value) {
+        if (value == null) return null;
+        WeakReference<String> ref = strings.get(value);
+        String result = ref == null ? null : ref.get();
+        if (result == null) {
+            strings.put(value, new WeakReference<String>(value));
+            result = value;
+        }
+        return result;
+    }
+
+    /**
+     * Возвращает общий экземпляр урока. Поля нового урока тоже заменяются общими строками.
+     * @param lesson Урок (может быть null)
+     * @return Равный урок из пула
+     */
+    synchronized Lesson intern(Lesson lesson) {
+        if (lesson == null) return null;
+        WeakReference<Lesson> ref = lessons.get(lesson);
+        Lesson result = ref == null ? null : ref.get();
+        if (result == null) {
+            for (int f = 0; f < Lesson.FIELDS; f++)
+                lesson.setField(f, intern(lesson.getField(f)));
+            lessons.put(lesson, new WeakReference<Lesson>(lesson));
+            result = lesson;
+        }
+        return result;
+    }
+
+    /**
+     * Возвращает общий экземпляр дня. Уроки дня тоже заменяются общими.
+     * <br>Переданный массив может сам стать общим, поэтому после вызова менять его нельзя.
+     * @param day Массив уроков (может быть null)
+     * @return Равный массив из пула; для дня без уроков - Timetable.EMPTY_DAY
+     */
+    synchronized Lesson[] intern(Lesson[] day) {
+        if (day == null || day == Timetable.EMPTY_DAY) return day;
+        boolean empty = true;
+        for (int i = 0; i < day.length; i++)
+            if ((day[i] = intern(day[i])) != null) empty = false;
+        if (empty && day.length == Timetable.MAX_PER_DAY) return Timetable.EMPTY_DAY;
+        for (Reference<? extends Lesson[]> ref = clearedDays.poll(); ref != null; ref = clearedDays.poll())
+            days.remove(ref); // убираем записи о собранных днях
+        DayRef found = days.get(new DayRef(day, null));
+        Lesson[] result = found == null ? null : found.get();
+        if (result == null) {
+            DayRef ref = new DayRef(day, clearedDays);
+            days.put(ref, ref);
+            result = day;
+        }
+        return result;
+    }
+
+    /**
+     * Заменяет общими экземплярами все дни уже заполненного расписания
+     * @param timetable Расписание
+     */
+    void intern(Timetable timetable) {
+        synchronized (timetable) {
+            timetable.loadAll();
+            for (int row = 0; row < timetable.lessons.length; row++)
+                timetable.lessons[row] = intern(Timetable.copyOf(timetable.lessons[row])); // равные по содержимому - индекс не устаревает
+            for (int i = 0; i < timetable.specialDays.capacity(); i++)
+                if (timetable.specialDays.isUsed(i))
+                    timetable.specialDays.put(timetable.specialDays.keyAt(i), intern(Timetable.copyOf(timetable.specialDays.valueAt(i))));
+        }
+    }
+
+    /** @return Количество уроков в пуле */
+    synchronized int lessonCount() {
+        return lessons.size();
+    }
+
+    /** @return Количество строк в пуле */
+    synchronized int stringCount() {
+        return strings.size();
+    }
+
+    /** @return Количество дней в пуле */
+    synchronized int dayCount() {
+        return days.size();
+    }
+
+    /**
+     * Слабая ссылка на день, сравниваемая по содержимому дня. Служит и ключом, и значением пула дней;
+     * собранный день равен только самому себе, так что его запись находится и удаляется по очереди ссылок.
+     */
+    private static final class DayRef extends WeakReference<Lesson[]> {
+        private final int hash;
+
+        DayRef(Lesson[] day, ReferenceQueue<Lesson[]> queue) {
+            super(day, queue);
+            hash = Arrays.hashCode(day);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DayRef)) return false;
+            Lesson[] day = get();
+            return day != null && Arrays.equals(day, ((DayRef)o).get());
+        }
+    }
+}
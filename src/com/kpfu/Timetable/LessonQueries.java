@@ -0,0 +1,205 @@
+package com.kpfu.Timetable;
+
+import java.util.Calendar;
+
+/**
+ * Быстрые вопросы ко времени: какой урок идёт сейчас, какой следующий, когда есть свободное окно.
+ * <br>При создании все уроки диапазона дат, для которых известно время (см. BellSchedule), раскладываются
+ * в массивы по возрастанию начала. Каждый вопрос - двоичный поиск, без выделения памяти
+ * (freeWindows выделяет только массив с ответом), так что его можно задавать хоть каждую минуту из виджета.
+ * <br>Время везде - "эпохальные минуты": эпохальный день * 1440 + минуты от полуночи (см. minute).
+ * После правки расписания ответы устаревают (см. isStale) - тогда нужно создать новый экземпляр.
+ */
+class LessonQueries {
+
+    /** Минут в сутках */
+    static final int DAY_MINUTES = 24 * 60;
+
+    private final Timetable timetable;
+    private final int version; // версия расписания, по которой всё вычислено
+    private final int from, to; // покрытый диапазон эпохальных дней
+    private final int[] starts; // начала уроков, по возрастанию
+    private final int[] ends; // концы уроков
+    private final Lesson[] lessons;
+    private final byte[] slots; // номера уроков в дне
+
+    /**
+     * Раскладывает уроки диапазона
+     * @param timetable Расписание (звонки берутся из него же)
+     * @param from Первый эпохальный день
+     * @param to Последний эпохальный день (включительно)
+     */
+    LessonQueries(Timetable timetable, int from, int to) {
+        this.timetable = timetable;
+        this.version = timetable.version();
+        this.from = from;
+        this.to = to;
+        BellSchedule bells = timetable.getBells();
+        int count = 0;
+        LessonCursor cursor = timetable.lessonsBetween(from, to);
+        while (cursor.next())
+            if (bells.has(cursor.slot())) count++;
+        starts = new int[count];
+        ends = new int[count];
+        lessons = new Lesson[count];
+        slots = new byte[count];
+        count = 0;
+        cursor = timetable.lessonsBetween(from, to);
+        while (cursor.next()) { // дни идут по возрастанию, а внутри дня звонки упорядочены - сортировать не нужно
+            int slot = cursor.slot();
+            if (!bells.has(slot)) continue;
+            int base = cursor.day() * DAY_MINUTES;
+            starts[count] = base + bells.start(slot);
+            ends[count] = base + bells.end(slot);
+            lessons[count] = cursor.lesson();
+            slots[count] = (byte)slot;
+            count++;
+        }
+    }
+
+    /**
+     * @param date Дата и время
+     * @return Эпохальная минута
+     */
+    static int minute(Calendar date) {
+        return Dates.epochDay(date) * DAY_MINUTES + date.get(Calendar.HOUR_OF_DAY) * 60 + date.get(Calendar.MINUTE);
+    }
+
+    /** @return Изменилось ли расписание с момента создания (тогда ответы могут быть неверны) */
+    boolean isStale() {
+        return timetable.version() != version;
+    }
+
+    /** @return Покрывает ли разложенный диапазон эту минуту? */
+    boolean covers(int minute) {
+        return minute >= from * DAY_MINUTES && minute < (to + 1) * DAY_MINUTES;
+    }
+
+    /** @return Количество разложенных уроков */
+    int size() {
+        return starts.length;
+    }
+
+    /**
+     * Урок, который идёт в эту минуту
+     * @param minute Эпохальная минута
+     * @return Номер урока (для start, end, lesson...) или -1, если сейчас перерыв
+     */
+    int current(int minute) {
+        int i = upperBound(minute) - 1; // последний начавшийся
+        return i >= 0 && ends[i] > minute ? i : -1;
+    }
+
+    /**
+     * Ближайший урок, который начнётся не раньше этой минуты
+     * @param minute Эпохальная минута
+     * @return Номер урока или -1, если до конца диапазона уроков больше нет
+     */
+    int next(int minute) {
+        int i = lowerBound(minute);
+        return i < starts.length ? i : -1;
+    }
+
+    /**
+     * Ближайшее свободное окно не короче заданного, начиная с этой минуты
+     * (окно между уроками одного или разных дней; после последнего урока диапазона - до конца диапазона)
+     * @param minute Эпохальная минута
+     * @param length Наименьшая длина окна в минутах
+     * @return Начало окна (эпохальная минута) или -1, если такого окна в диапазоне нет
+     */
+    int nextFree(int minute, int length) {
+        int end = (to + 1) * DAY_MINUTES;
+        int i = current(minute);
+        int free = i < 0 ? minute : ends[i]; // если урок идёт, окно начнётся с его концом
+        for (int j = lowerBound(free); ; j++) {
+            int busy = j < starts.length ? starts[j] : end;
+            if (busy - free >= length) return free < end ? free : -1;
+            if (j >= starts.length) return -1;
+            free = Math.max(free, ends[j]);
+        }
+    }
+
+    /**
+     * Свободные окна между уроками в промежутке времени
+     * @param fromMinute Начало промежутка (эпохальная минута)
+     * @param toMinute Конец промежутка (не включается)
+     * @param length Наименьшая длина окна в минутах
+     * @return Окна парами [начало, конец) подряд: {начало1, конец1, начало2, конец2...}
+     */
+    int[] freeWindows(int fromMinute, int toMinute, int length) {
+        int[] windows = new int[windows(fromMinute, toMinute, length, null)]; // как в конструкторе: сначала считаем
+        windows(fromMinute, toMinute, length, windows);
+        return windows;
+    }
+
+    /**
+     * Обходит свободные окна промежутка (см. freeWindows)
+     * @param into Куда складывать окна; null - только посчитать
+     * @return Сколько чисел (по два на окно) записано или было бы записано
+     */
+    private int windows(int fromMinute, int toMinute, int length, int[] into) {
+        int count = 0;
+        int i = current(fromMinute);
+        int free = i < 0 ? fromMinute : ends[i];
+        for (int j = lowerBound(free); free < toMinute; j++) {
+            int busy = j < starts.length ? Math.min(starts[j], toMinute) : toMinute;
+            if (busy - free >= length) {
+                if (into != null) {
+                    into[count] = free;
+                    into[count + 1] = busy;
+                }
+                count += 2;
+            }
+            if (j >= starts.length) break;
+            free = Math.max(free, ends[j]);
+        }
+        return count;
+    }
+
+    /** @return Начало урока (эпохальная минута) */
+    int start(int i) {
+        return starts[i];
+    }
+
+    /** @return Конец урока (эпохальная минута) */
+    int end(int i) {
+        return ends[i];
+    }
+
+    /** @return Эпохальный день урока */
+    int day(int i) {
+        return starts[i] / DAY_MINUTES;
+    }
+
+    /** @return Номер урока в дне (с нуля) */
+    int slot(int i) {
+        return slots[i];
+    }
+
+    /** @return Сам урок */
+    Lesson lesson(int i) {
+        return lessons[i];
+    }
+
+    /** @return Первый урок, начинающийся не раньше minute */
+    private int lowerBound(int minute) {
+        int low = 0, high = starts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] < minute) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /** @return Первый урок, начинающийся позже minute */
+    private int upperBound(int minute) {
+        int low = 0, high = starts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] <= minute) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+}
@@ -4,12 +4,16 @@ import android.app.Activity;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.view.View;
-import android.view.ViewGroup;
-import android.widget.TableLayout;
-import android.widget.TableRow;
-import android.widget.TextView;
+import android.widget.AbsListView;
+import android.widget.ListView;
+import android.widget.Toast;
 
 import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Основная деятельность - здесь отображается расписание
@@ -22,6 +26,15 @@ public class MainActivity extends Activity {
     final int LOWER_SHOW_LIMIT = -7; // Сколько записей до сегодняшнего дня отображать при загрузке
     final int UPPER_SHOW_LIMIT = 14; // Сколько записей после сегодняшнего дня отображать при загрузке
     final int SHOW_PORTION = 7; // По сколько записей загружать, когда пользователь доскроллил до границы
+    final int MAX_SHOWN_DAYS = 8 * SHOW_PORTION; // Сколько дней держать в списке; остальные выгружаются
+
+    private ExecutorService executor = null; // Фоновый поток загрузки
+    private Future<?> loading = null; // Текущая загрузка
+    private ListView list = null; // Список дней
+    private DayAdapter adapter = null; // Строки списка
+    private DayWindow window = null; // Показываемые дни
+    private int today; // Сегодняшний эпохальный день
+    private boolean loaded = false; // Все порции первоначального окна получены, можно листать дальше
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -29,58 +42,148 @@ public class MainActivity extends Activity {
         setContentView(R.layout.main);
         SharedPreferences settings = getSharedPreferences(getString(R.string.settings_filename), MODE_PRIVATE);
         group = settings.getString("group", getString(R.string.default_group));
-        if (!group.equals(getString(R.string.default_group))) {
-            timetable = Timetable.loadFrom(group); // загрузка из файла
-            if (timetable == null) { // если из файла загрузить не удалось...
-                // TODO: Здесь будет загрузка расписания из интернета
+        final boolean hasGroup = !group.equals(getString(R.string.default_group));
+        list = (ListView)findViewById(R.id.listViewMain);
+        adapter = new DayAdapter(getLayoutInflater());
+        list.setAdapter(adapter);
+        list.setOnScrollListener(new AbsListView.OnScrollListener() {
+            public void onScrollStateChanged(AbsListView view, int state) { }
+
+            public void onScroll(AbsListView view, int first, int visible, int total) {
+                if (loaded && total > 0) page(first, visible, total);
             }
+        });
+        today = Dates.epochDay(Calendar.getInstance());
+        // Холодный запуск: сразу показываем дни, сохранённые в прошлый раз, если файл расписания с тех пор не менялся
+        final long stamp = hasGroup ? DayCache.stamp(group) : 0;
+        final List<DayModel> cached = DayCache.load(group, stamp, today);
+        if (cached != null) {
+            window = new DayWindow(null, MAX_SHOWN_DAYS); // расписание подключится, когда загрузится
+            window.insert(cached, Integer.MAX_VALUE);
+            adapter.setWindow(window);
+            findViewById(R.id.textViewNoData).setVisibility(View.GONE);
+            list.setVisibility(View.VISIBLE);
         }
-        timetable = DebugExample(); // берём расписание из ниоткуда
-        if (timetable != null) {
-            findViewById(R.id.textViewNoData).setVisibility(View.GONE); // Убираем заглушку
-            findViewById(R.id.scrollViewMain).setVisibility(View.VISIBLE); // Показываем расписание
-            TableLayout table = (TableLayout)findViewById(R.id.tableLayoutMain);
-            Calendar date = Calendar.getInstance();
-            date.add(Calendar.DAY_OF_YEAR, LOWER_SHOW_LIMIT);
-            for (int i = LOWER_SHOW_LIMIT; i <= UPPER_SHOW_LIMIT; i++) { // В цикле добавляем дни
-                addDayRow(table, date);
-                date.add(Calendar.DAY_OF_YEAR, 1);
+        // Загрузка и подготовка дней идут в фоне; строки появляются по мере готовности, начиная с сегодняшней
+        executor = Executors.newSingleThreadExecutor();
+        loading = new TimetableLoader(executor).load(new Callable<Timetable>() {
+            public Timetable call() {
+                Timetable result = null;
+                if (hasGroup) {
+                    result = Timetable.loadFrom(group); // загрузка из файла
+                    if (result == null) { // если из файла загрузить не удалось...
+                        // TODO: Здесь будет загрузка расписания из интернета
+                    }
+                }
+                final Timetable shown = DebugExample(); // берём расписание из ниоткуда
+                if (result != null) {
+                    final Timetable loaded = result;
+                    executor.execute(new Runnable() { // после подготовки дней: сверяем и при надобности обновляем кэш
+                        public void run() {
+                            // кэш лежит рядом с файлом группы, но дни в нём - того расписания, что показано
+                            DayCache.refresh(group, stamp, shown, today + LOWER_SHOW_LIMIT, today + UPPER_SHOW_LIMIT, cached);
+                            loaded.loadAll(); // повреждённые блоки особых дней обнаруживаются только при чтении
+                            if (loaded.isDamaged()) showDamaged();
+                        }
+                    });
+                }
+                return shown;
+            }
+        }, today, LOWER_SHOW_LIMIT, UPPER_SHOW_LIMIT, SHOW_PORTION, new TimetableLoader.Callback() {
+            public void onLoaded(final Timetable result) {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        timetable = result;
+                        if (window == null) {
+                            window = new DayWindow(timetable, MAX_SHOWN_DAYS);
+                            adapter.setWindow(window);
+                        }
+                        else window.setTimetable(timetable); // окно из кэша: дни заменятся по мере подготовки
+                        findViewById(R.id.textViewNoData).setVisibility(View.GONE); // Убираем заглушку
+                        list.setVisibility(View.VISIBLE); // Показываем расписание
+                    }
+                });
+            }
+
+            public void onDays(final List<DayModel> days) {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        insertDays(days);
+                    }
+                });
+            }
+
+            public void onFailed() {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        list.setVisibility(View.GONE); // Скрываем расписание
+                        findViewById(R.id.textViewNoData).setVisibility(View.VISIBLE); // Ставим заглушку
+                    }
+                });
             }
+        });
+        // TODO: загрузить из настроек время последней загрузки этого расписания и, если пришёл срок, в фоновом потоке обновить его
+    }
+
+    @Override
+    public void onDestroy() {
+        if (loading != null) loading.cancel(true);
+        if (executor != null) executor.shutdownNow();
+        super.onDestroy();
+    }
+
+    /**
+     * Добавляет в список порцию подготовленных дней, не сдвигая то, что пользователь уже видит
+     * @param days Подготовленные дни
+     */
+    private void insertDays(List<DayModel> days) {
+        int first = list.getFirstVisiblePosition();
+        int anchor = window.size() > first ? window.get(first).day : Integer.MAX_VALUE;
+        int before = window.insert(days, anchor);
+        adapter.notifyDataSetChanged();
+        if (before != 0) keepPosition(first + before);
+        loaded = timetable != null && window.from() <= today + LOWER_SHOW_LIMIT && window.to() >= today + UPPER_SHOW_LIMIT;
+    }
+
+    /**
+     * Догружает по SHOW_PORTION дней, когда пользователь доходит до края списка
+     * @param first Первая видимая строка
+     * @param visible Количество видимых строк
+     * @param total Всего строк
+     */
+    private void page(int first, int visible, int total) {
+        // Список обновляем, только если окно изменилось: после обновления ListView снова вызывает onScroll
+        if (first + visible >= total) { // дошли до конца - добавляем будущее, лишнее прошлое выгружаем
+            int removed = window.extendForward(SHOW_PORTION, window.get(first).day);
+            if (removed < 0) return;
+            adapter.notifyDataSetChanged();
+            if (removed > 0) keepPosition(first - removed);
         }
-        else {
-            findViewById(R.id.scrollViewMain).setVisibility(View.GONE); // Скрываем расписание
-            findViewById(R.id.textViewNoData).setVisibility(View.VISIBLE); // Ставим заглушку
+        else if (first == 0) { // дошли до начала - добавляем прошлое, лишнее будущее выгружаем
+            int added = window.extendBackward(SHOW_PORTION, window.get(Math.min(visible, total) - 1).day);
+            if (added == 0) return;
+            adapter.notifyDataSetChanged();
+            keepPosition(added);
         }
-        // TODO: загрузить из настроек время последней загрузки этого расписания и, если пришёл срок, в фоновом потоке обновить его
     }
 
     /**
-     * Добавление элемента "строка таблицы про один день из расписания"
-     * @param parent Элемент, в который нужно вложить эту строку
-     * @param date Дата
+     * Сообщает, что файл расписания повреждён: часть особых дней потеряна, и сохранить расписание поверх нельзя
      */
-    private void addDayRow(ViewGroup parent, Calendar date) {
-        TableRow day = (TableRow)getLayoutInflater().inflate(R.layout.day, parent, false); // берём заготовку "день",..
-        String dateText = Integer.toString(date.get(Calendar.DAY_OF_MONTH)) + ".";
-        dateText += Integer.toString(date.get(Calendar.MONTH)) + ".";
-        dateText += Integer.toString(date.get(Calendar.YEAR));
-        TextView dateView = (TextView)day.findViewById(R.id.textViewDate);
-        dateView.setText(dateText); // меняем текст заголовка строки,..
-        int count = 1;
-        TableLayout table = (TableLayout) day.findViewById(R.id.tableLayoutLessons);
-        for (Lesson lesson : timetable.getLessons(date)) { // вставляем (или не вставляем) заготовку "урок" для каждого урока,..
-            if (lesson != null && lesson.fullName != null) {
-                TableRow lessonRow = (TableRow) getLayoutInflater().inflate(R.layout.lesson, table, false);
-                TextView lessonTime = (TextView) lessonRow.findViewById(R.id.textViewTime);
-                TextView lessonName = (TextView) lessonRow.findViewById(R.id.textViewFullName);
-                lessonTime.setText(Integer.toString(count)); // внутри меняем заголовок про время,...
-                lessonName.setText(lesson.fullName); // и название урока,..
-                table.addView(lessonRow); // собственно вставляем урок в день,..
+    private void showDamaged() {
+        runOnUiThread(new Runnable() {
+            public void run() {
+                Toast.makeText(MainActivity.this, R.string.timetable_damaged, Toast.LENGTH_LONG).show();
             }
-            count++;
-        }
-        if (table.getChildCount() > 0)
-            parent.addView(day); // а день вставляем в расписание (если в нём есть хоть один урок).
+        });
+    }
+
+    /**
+     * Прокручивает список так, чтобы строка position оказалась там, где была первая видимая строка
+     */
+    private void keepPosition(int position) {
+        View top = list.getChildAt(0);
+        list.setSelectionFromTop(Math.max(position, 0), top == null ? 0 : top.getTop());
     }
 
     /**
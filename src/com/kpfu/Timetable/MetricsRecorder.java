@@ -0,0 +1,154 @@
+package com.kpfu.Timetable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Накопитель замеров: счётчики, объёмы и гистограммы задержек.
+ * <br>Всё хранится в атомарных счётчиках фиксированного размера - запись не выделяет память и не блокирует.
+ * <pre>
+ * MetricsRecorder recorder = new MetricsRecorder();
+ * Timetable.setMetrics(recorder);
+ * ...
+ * Log.i("Timetable", recorder.toString());
+ * </pre>
+ */
+class MetricsRecorder implements TimetableMetrics {
+
+    /**
+     * Гистограмма задержек со степенями двойки в качестве границ корзин: корзина i - от 2^i до 2^(i+1) нс
+     */
+    static class Histogram {
+        private static final int BUCKETS = 40; // до ~18 минут
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /** Учитывает одно значение */
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            int bucket = 63 - Long.numberOfLeadingZeros(nanos | 1);
+            counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            total.incrementAndGet();
+            sum.addAndGet(nanos);
+            long current;
+            while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) { }
+        }
+
+        /** @return Количество значений */
+        long count() {
+            return total.get();
+        }
+
+        /** @return Сумма значений в наносекундах */
+        long sum() {
+            return sum.get();
+        }
+
+        /** @return Среднее в наносекундах */
+        long mean() {
+            long count = total.get();
+            return count == 0 ? 0 : sum.get() / count;
+        }
+
+        /** @return Наибольшее значение в наносекундах */
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * @param fraction Доля, например 0.99
+         * @return Верхняя граница корзины, в которую попадает эта доля значений (оценка сверху), нс
+         */
+        long percentile(double fraction) {
+            long count = total.get();
+            if (count == 0) return 0;
+            long rank = (long)Math.ceil(fraction * count), seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(1L << (i + 1), max.get());
+            }
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count() + " mean=" + mean() + "ns p50<=" + percentile(0.5) + "ns p99<=" + percentile(0.99)
+                    + "ns max=" + max() + "ns";
+        }
+    }
+
+    final Histogram loads = new Histogram();
+    final Histogram saves = new Histogram();
+    final Histogram lookups = new Histogram();
+    private final AtomicLong binaryLoads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong saveFailures = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong largestFile = new AtomicLong();
+    private final AtomicLong specialHits = new AtomicLong();
+
+    public void loaded(String filename, boolean binary, long bytes, long nanos) {
+        loads.record(nanos);
+        if (binary) binaryLoads.incrementAndGet();
+        bytesRead.addAndGet(bytes);
+        largest(bytes);
+    }
+
+    public void loadFailed(String filename, long nanos) {
+        loadFailures.incrementAndGet();
+    }
+
+    public void saved(String filename, long bytes, long nanos) {
+        saves.record(nanos);
+        bytesWritten.addAndGet(bytes);
+        largest(bytes);
+    }
+
+    public void saveFailed(String filename, long nanos) {
+        saveFailures.incrementAndGet();
+    }
+
+    public void lookup(long nanos, boolean special) {
+        lookups.record(nanos);
+        if (special) specialHits.incrementAndGet();
+    }
+
+    private void largest(long bytes) {
+        long current;
+        while (bytes > (current = largestFile.get()) && !largestFile.compareAndSet(current, bytes)) { }
+    }
+
+    /** @return Прочитано байт при загрузках */
+    long bytesRead() {
+        return bytesRead.get();
+    }
+
+    /** @return Записано байт при сохранениях */
+    long bytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /** @return Скорость разбора при загрузке, байт в секунду (0, если загрузок не было) */
+    long loadThroughput() {
+        long nanos = loads.sum();
+        return nanos == 0 ? 0 : (long)(bytesRead.get() * 1e9 / nanos);
+    }
+
+    /** @return Доля поисков, пришедшихся на особые дни и правила замены */
+    double specialHitRate() {
+        long count = lookups.count();
+        return count == 0 ? 0 : (double)specialHits.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "loads{" + loads + " binary=" + binaryLoads.get() + " failed=" + loadFailures.get()
+                + " bytes=" + bytesRead.get() + " throughput=" + loadThroughput() + "B/s}"
+                + " saves{" + saves + " failed=" + saveFailures.get() + " bytes=" + bytesWritten.get() + "}"
+                + " largestFile=" + largestFile.get()
+                + " lookups{" + lookups + " special=" + specialHits.get() + "}";
+    }
+}
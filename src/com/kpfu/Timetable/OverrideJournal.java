@@ -0,0 +1,373 @@
+package com.kpfu.Timetable;
+
+import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Журнал изменений, дописываемый рядом с основным файлом расписания.
+ * <br>Каждая правка дня (особого или строки сетки) добавляет в конец журнала одну небольшую запись, а не переписывает весь файл.
+ * Записи хранят итоговое состояние дня, поэтому повторное применение журнала безопасно.
+ * Когда журнал разрастается, он в фоне сворачивается в основной файл.
+ * <br>Дописывать в журнал может цепочка сменяющих друг друга копий (см. Timetable.continueJournal, SharedTimetable).
+ * При сворачивании в файл пишется та, что дописала последней: её состояние включает все записи журнала.
+ * Записи, дописанные во время сворачивания, в журнале остаются.
+ * Повреждённое расписание (см. Timetable.isDamaged) не сворачивается - все правки так и остаются в журнале.
+ */
+class OverrideJournal {
+
+    /** Расширение файла журнала (добавляется к имени основного файла) */
+    static final String SUFFIX = ".journal";
+    /** Размер журнала в байтах, после которого он сворачивается в основной файл */
+    static final long COMPACT_THRESHOLD = 16 * 1024;
+
+    private static final byte OP_SET_DAY = 1; // день целиком: дата + MAX_PER_DAY уроков
+    private static final byte OP_SET_LESSON = 2; // один урок дня: дата + номер + урок
+    private static final byte OP_HOLIDAY = 3; // выходной: дата
+    private static final byte OP_CLEAR = 4; // сброс всех особых дней
+    private static final byte OP_SET_ROW = 5; // строка сетки целиком: номер + MAX_PER_DAY уроков
+    private static final byte OP_REMOVE_DAY = 6; // отмена особого дня: дата
+    private static final byte OP_FIRST_DAY = 7; // новый первый день: дата
+    private static final byte OP_RULE = 8; // новое правило замены (см. OverrideRule)
+    private static final byte OP_RULES = 9; // все правила замены: количество + правила
+
+    private static final int LESSON_PRESENT = 0x80; // в маске полей: урок не null
+
+    // Один фоновый поток на всё приложение - сворачивание редкое и недолгое
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "timetable-journal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String baseName; // имя основного файла
+    private final File file; // файл журнала
+    private boolean compacting = false; // сворачивание уже запланировано
+    private Timetable owner = null; // расписание, дописавшее последнюю запись
+
+    /**
+     * Конструктор
+     * @param baseName Имя основного файла расписания
+     */
+    OverrideJournal(String baseName) {
+        this.baseName = baseName;
+        this.file = new File(baseName + SUFFIX);
+    }
+
+    /** Записывает замену всего дня */
+    void setDay(Timetable owner, int date, Lesson[] lessons) {
+        try {
+            Record out = record(OP_SET_DAY, date);
+            for (int i = 0; i < Timetable.MAX_PER_DAY; i++)
+                writeLesson(out, i < lessons.length ? lessons[i] : null);
+            append(owner, out);
+        } catch (IOException e) { compact(owner); }
+    }
+
+    /** Записывает замену одного урока в день */
+    void setLesson(Timetable owner, int date, int count, Lesson lesson) {
+        try {
+            Record out = record(OP_SET_LESSON, date);
+            out.writeByte(count);
+            writeLesson(out, lesson);
+            append(owner, out);
+        } catch (IOException e) { compact(owner); }
+    }
+
+    /** Записывает выходной день */
+    void holiday(Timetable owner, int date) {
+        try {
+            append(owner, record(OP_HOLIDAY, date));
+        } catch (IOException e) { compact(owner); }
+    }
+
+    /** Записывает замену строки недельной сетки */
+    void setRow(Timetable owner, int row, Lesson[] lessons) {
+        try {
+            Record out = new Record();
+            out.writeByte(OP_SET_ROW);
+            out.writeByte(row);
+            for (int i = 0; i < Timetable.MAX_PER_DAY; i++)
+                writeLesson(out, i < lessons.length ? lessons[i] : null);
+            append(owner, out);
+        } catch (IOException e) { compact(owner); }
+    }
+
+    /** Записывает отмену особого дня */
+    void removeDay(Timetable owner, int date) {
+        try {
+            append(owner, record(OP_REMOVE_DAY, date));
+        } catch (IOException e) { compact(owner); }
+    }
+
+    /** Записывает смену первого дня */
+    void firstDay(Timetable owner, int date) {
+        try {
+            append(owner, record(OP_FIRST_DAY, date));
+        } catch (IOException e) { compact(owner); }
+    }
+
+    /** Записывает новое правило замены */
+    void rule(Timetable owner, OverrideRule rule) {
+        try {
+            Record out = new Record();
+            out.writeByte(OP_RULE);
+            rule.write(out);
+            append(owner, out);
+        } catch (IOException e) { compact(owner); }
+    }
+
+    /** Записывает замену всех правил */
+    void rules(Timetable owner, OverrideRules rules) {
+        try {
+            Record out = new Record();
+            out.writeByte(OP_RULES);
+            out.writeShort(rules.size());
+            for (int i = 0; i < rules.size(); i++)
+                rules.get(i).write(out);
+            append(owner, out);
+        } catch (IOException e) { compact(owner); }
+    }
+
+    /** Записывает сброс всех особых дней и правил */
+    void clear(Timetable owner) {
+        try {
+            Record out = new Record();
+            out.writeByte(OP_CLEAR);
+            append(owner, out);
+        } catch (IOException e) { compact(owner); }
+    }
+
+    /**
+     * Применяет журнал к расписанию, загруженному из основного файла.
+     * <br>Недописанная последняя запись (например, после падения) отбрасывается и обрезается.
+     * @param timetable Расписание
+     * @throws IOException Ошибка ввода/вывода
+     */
+    void replay(Timetable timetable) throws IOException {
+        if (!file.exists()) return;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] bytes = new byte[(int)raf.length()];
+            raf.readFully(bytes);
+            ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+            DataInputStream in = new DataInputStream(buffer);
+            int good = 0;
+            try {
+                while (buffer.available() > 0) {
+                    apply(timetable, in);
+                    good = bytes.length - buffer.available();
+                }
+            } catch (IOException e) { // обрыв или мусор в хвосте
+                raf.setLength(good);
+            } catch (RuntimeException e) {
+                raf.setLength(good);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param baseName Имя основного файла расписания
+     * @return Ведётся ли этот журнал для этого файла?
+     */
+    boolean isFor(String baseName) {
+        return this.baseName.equals(baseName);
+    }
+
+    /** Удаляет журнал (после того как основной файл полностью переписан) */
+    synchronized void reset() {
+        if (file.exists() && !file.delete())
+            try {
+                new FileOutputStream(file, false).close();
+            } catch (IOException e) { } // Ну коли так, то при загрузке журнал просто применится повторно
+    }
+
+    /** @return Текущий размер журнала в байтах */
+    long length() {
+        return file.length();
+    }
+
+    private static void apply(Timetable timetable, DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        if (op == OP_CLEAR) {
+            timetable.clearSpecialDays();
+            timetable.setRules(OverrideRules.NONE);
+            return;
+        }
+        if (op == OP_RULE) { // уже записанное в файл правило не удвоится (см. OverrideRules.with), если reset не удался
+            timetable.setRules(timetable.getRules().with(OverrideRule.read(in)));
+            return;
+        }
+        if (op == OP_RULES) {
+            OverrideRules rules = OverrideRules.NONE;
+            for (int i = in.readUnsignedShort(); i > 0; i--)
+                rules = rules.with(OverrideRule.read(in));
+            timetable.setRules(rules);
+            return;
+        }
+        if (op == OP_SET_ROW) {
+            int row = in.readUnsignedByte();
+            Lesson[] day = new Lesson[Timetable.MAX_PER_DAY];
+            for (int i = 0; i < day.length; i++)
+                day[i] = readLesson(in);
+            timetable.setLessons(day, row);
+            return;
+        }
+        int date = readDate(in);
+        switch (op) {
+            case OP_SET_DAY:
+                Lesson[] day = new Lesson[Timetable.MAX_PER_DAY];
+                for (int i = 0; i < day.length; i++)
+                    day[i] = readLesson(in);
+                timetable.putSpecialDay(date, day);
+                break;
+            case OP_SET_LESSON:
+                int count = in.readByte();
+                Lesson lesson = readLesson(in);
+                Lesson[] from = Timetable.copyOf(timetable.lessonsOn(date));
+                from[count] = lesson;
+                timetable.putSpecialDay(date, from);
+                break;
+            case OP_HOLIDAY:
+                timetable.putSpecialDay(date, Timetable.EMPTY_DAY);
+                break;
+            case OP_REMOVE_DAY:
+                timetable.removeSpecialDay(date);
+                break;
+            case OP_FIRST_DAY:
+                timetable.setFirstDay(date);
+                break;
+            default:
+                throw new IOException("Unknown journal record " + op);
+        }
+    }
+
+    private static Record record(byte op, int date) throws IOException {
+        Record out = new Record();
+        out.writeByte(op);
+        out.writeShort(Dates.year(date));
+        out.writeByte(Dates.month(date));
+        out.writeByte(Dates.dayOfMonth(date));
+        return out;
+    }
+
+    private void append(Timetable owner, Record record) throws IOException {
+        long length;
+        synchronized (this) { // не вперемешку со сворачиванием
+            FileOutputStream stream = new FileOutputStream(file, true);
+            try {
+                record.writeTo(stream); // запись целиком, одним вызовом
+            } finally {
+                stream.close();
+            }
+            this.owner = owner;
+            length = file.length();
+        }
+        if (length > COMPACT_THRESHOLD)
+            compact(owner);
+    }
+
+    /**
+     * Планирует в фоне перезапись основного файла с последующим удалением журнала
+     * @param owner Расписание, которому принадлежит журнал
+     */
+    private void compact(Timetable owner) {
+        synchronized (this) {
+            this.owner = owner; // и при неудачной записи: правка у него уже сделана
+            if (compacting) return;
+            compacting = true;
+        }
+        compactor.execute(new Runnable() {
+            public void run() {
+                Timetable latest;
+                long mark;
+                synchronized (OverrideJournal.this) {
+                    compacting = false;
+                    latest = OverrideJournal.this.owner;
+                    mark = file.length(); // всё до этой границы уже есть в состоянии latest
+                }
+                if (latest.writeFile(baseName))
+                    truncate(mark);
+            }
+        });
+    }
+
+    /**
+     * Убирает из начала журнала записи, уже попавшие в основной файл
+     * @param mark Сколько байт убрать
+     */
+    private synchronized void truncate(long mark) {
+        long length = file.length();
+        if (length <= mark) {
+            reset();
+            return;
+        }
+        File temp = null;
+        try {
+            temp = Timetable.tempFile(file);
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            byte[] tail = new byte[(int)(length - mark)];
+            try {
+                raf.seek(mark);
+                raf.readFully(tail);
+            } finally {
+                raf.close();
+            }
+            FileOutputStream stream = new FileOutputStream(temp, false);
+            try {
+                stream.write(tail);
+                stream.getChannel().force(true);
+            } finally {
+                stream.close();
+            }
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+                throw new IOException("Cannot replace " + file);
+        } catch (IOException e) {
+            if (temp != null) temp.delete(); // журнал остался целиком; повтор уже записанных правок безопасен
+        }
+    }
+
+    static void writeLesson(DataOutputStream out, Lesson lesson) throws IOException {
+        if (lesson == null) {
+            out.writeByte(0);
+            return;
+        }
+        int mask = LESSON_PRESENT;
+        for (int f = 0; f < Lesson.FIELDS; f++)
+            if (lesson.getField(f) != null) mask |= 1 << f;
+        out.writeByte(mask);
+        for (int f = 0; f < Lesson.FIELDS; f++)
+            if (lesson.getField(f) != null) out.writeUTF(lesson.getField(f));
+    }
+
+    static Lesson readLesson(DataInputStream in) throws IOException {
+        int mask = in.readUnsignedByte();
+        if ((mask & LESSON_PRESENT) == 0) return null;
+        Lesson lesson = new Lesson();
+        for (int f = 0; f < Lesson.FIELDS; f++)
+            if ((mask & (1 << f)) != 0) lesson.setField(f, in.readUTF());
+        return LessonPool.SHARED.intern(lesson);
+    }
+
+    static int readDate(DataInputStream in) throws IOException {
+        int year = in.readShort();
+        int month = in.readByte();
+        int day = in.readByte();
+        return Dates.epochDay(year, month, day);
+    }
+
+    /** Одна запись журнала, собираемая в памяти и дописываемая целиком */
+    private static class Record extends DataOutputStream {
+        Record() { super(new ByteArrayOutputStream(64)); }
+
+        void writeTo(OutputStream stream) throws IOException {
+            flush();
+            ((ByteArrayOutputStream)out).writeTo(stream);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.kpfu.Timetable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Правило замены уроков на диапазоне дат - вместо того чтобы записывать каждый день особым днём.
+ * <br>Виды правил:
+ * <ul>
+ * <li>CANCEL - уроков нет (каникулы, сессия); можно ограничить каждой N-й неделей и днями недели;</li>
+ * <li>FOLLOW - в эти дни уроки идут по другой строке недельной сетки (перенос: "в субботу - расписание понедельника").</li>
+ * </ul>
+ * Правила неизменяемы. Хранятся и ищутся в OverrideRules.
+ * <pre>
+ * Запись (13 байт): byte вид, дата начала, дата конца (short год, byte месяц, byte число),
+ *                   byte период в неделях, byte номер недели в периоде, byte маска дней недели, byte строка сетки
+ * </pre>
+ */
+class OverrideRule {
+
+    /** Уроков нет */
+    static final int CANCEL = 1;
+    /** Уроки по другой строке сетки */
+    static final int FOLLOW = 2;
+
+    /** Все дни недели (бит i - день недели i, понедельник = 1) */
+    static final int ALL_WEEKDAYS = 0xFE;
+
+    /** Вид правила: CANCEL или FOLLOW */
+    final int kind;
+    /** Первый эпохальный день */
+    final int from;
+    /** Последний эпохальный день (включительно) */
+    final int to;
+    /** Период в неделях: правило действует в каждую period-ю неделю, считая от недели дня from */
+    final int period;
+    /** Номер недели внутри периода (с нуля), в которую правило действует */
+    final int phase;
+    /** Маска дней недели, в которые правило действует */
+    final int weekdays;
+    /** Строка недельной сетки (для FOLLOW) */
+    final int row;
+
+    OverrideRule(int kind, int from, int to, int period, int phase, int weekdays, int row) {
+        if (to < from || period < 1 || phase < 0 || phase >= period)
+            throw new IllegalArgumentException("Bad override rule");
+        this.kind = kind;
+        this.from = from;
+        this.to = to;
+        this.period = period;
+        this.phase = phase;
+        this.weekdays = weekdays;
+        this.row = row;
+    }
+
+    /**
+     * Отменяет уроки в каждый день диапазона
+     * @param from Первый эпохальный день
+     * @param to Последний эпохальный день (включительно)
+     * @return Правило
+     */
+    static OverrideRule cancel(int from, int to) {
+        return new OverrideRule(CANCEL, from, to, 1, 0, ALL_WEEKDAYS, 0);
+    }
+
+    /**
+     * Отменяет уроки в каждую N-ю неделю диапазона (например, военная кафедра раз в три недели)
+     * @param from Первый эпохальный день; недели считаются от его понедельника
+     * @param to Последний эпохальный день (включительно)
+     * @param period Каждая какая неделя
+     * @param phase Какая по счёту неделя периода (с нуля)
+     * @param weekdays Маска дней недели (бит i - день недели i, понедельник = 1), ALL_WEEKDAYS - все
+     * @return Правило
+     */
+    static OverrideRule everyNthWeek(int from, int to, int period, int phase, int weekdays) {
+        return new OverrideRule(CANCEL, from, to, period, phase, weekdays, 0);
+    }
+
+    /**
+     * Уроки дня идут по другой строке сетки (перенос дня)
+     * @param day Эпохальный день
+     * @param row Строка сетки, по которой идут уроки (понедельник = 1, понедельник второй недели = 8)
+     * @return Правило
+     */
+    static OverrideRule follow(int day, int row) {
+        return new OverrideRule(FOLLOW, day, day, 1, 0, ALL_WEEKDAYS, row);
+    }
+
+    /**
+     * @param day Эпохальный день
+     * @return Действует ли правило в этот день?
+     */
+    boolean appliesTo(int day) {
+        if (day < from || day > to) return false;
+        if ((weekdays & (1 << Dates.dayOfWeek(day))) == 0) return false;
+        return period == 1 || Dates.floorMod(Dates.floorDiv(day - Dates.monday(from), 7), period) == phase;
+    }
+
+    /**
+     * Записывает правило
+     * @param out Поток
+     * @throws IOException Ошибка ввода/вывода
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeByte(kind);
+        writeDate(out, from);
+        writeDate(out, to);
+        out.writeByte(period);
+        out.writeByte(phase);
+        out.writeByte(weekdays);
+        out.writeByte(row);
+    }
+
+    /**
+     * Читает правило
+     * @param in Поток
+     * @return Правило
+     * @throws IOException Ошибка ввода/вывода или неверная запись
+     */
+    static OverrideRule read(DataInput in) throws IOException {
+        int kind = in.readUnsignedByte();
+        int from = Dates.epochDay(in.readShort(), in.readByte(), in.readByte());
+        int to = Dates.epochDay(in.readShort(), in.readByte(), in.readByte());
+        return create(kind, from, to, in.readUnsignedByte(), in.readUnsignedByte(), in.readUnsignedByte(), in.readUnsignedByte());
+    }
+
+    /**
+     * Читает правило из буфера (см. BinaryFormat)
+     * @param buffer Буфер
+     * @return Правило
+     * @throws IOException Неверная запись
+     */
+    static OverrideRule read(ByteBuffer buffer) throws IOException {
+        int kind = buffer.get() & 0xFF;
+        int from = Dates.epochDay(buffer.getShort(), buffer.get(), buffer.get());
+        int to = Dates.epochDay(buffer.getShort(), buffer.get(), buffer.get());
+        return create(kind, from, to, buffer.get() & 0xFF, buffer.get() & 0xFF, buffer.get() & 0xFF, buffer.get() & 0xFF);
+    }
+
+    private static OverrideRule create(int kind, int from, int to, int period, int phase, int weekdays, int row)
+            throws IOException {
+        if (kind != CANCEL && kind != FOLLOW) throw new IOException("Unknown override rule " + kind);
+        try {
+            return new OverrideRule(kind, from, to, period, phase, weekdays, row);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad override rule");
+        }
+    }
+
+    private static void writeDate(DataOutput out, int date) throws IOException {
+        out.writeShort(Dates.year(date));
+        out.writeByte(Dates.month(date));
+        out.writeByte(Dates.dayOfMonth(date));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof OverrideRule)) return false;
+        OverrideRule other = (OverrideRule)o;
+        return kind == other.kind && from == other.from && to == other.to && period == other.period
+                && phase == other.phase && weekdays == other.weekdays && row == other.row;
+    }
+
+    @Override
+    public int hashCode() {
+        return (((kind * 31 + from) * 31 + to) * 31 + period * 256 + phase) * 31 + weekdays * 256 + row;
+    }
+}
@@ -0,0 +1,108 @@
+package com.kpfu.Timetable;
+
+import java.util.Arrays;
+
+/**
+ * Неизменяемый набор правил замены (см. OverrideRule) с поиском по дате через дерево интервалов.
+ * <br>Правила упорядочены по началу; дерево - неявное (середина отрезка массива - корень),
+ * в каждом узле хранится наибольший конец правил его поддерева, так что ветви, где все правила
+ * закончились раньше искомого дня, не просматриваются. Поиск - O(log n + k), где k - число правил, покрывающих день.
+ * <br>Из нескольких подходящих правил действует добавленное последним.
+ */
+class OverrideRules {
+
+    /** Пустой набор */
+    static final OverrideRules NONE = new OverrideRules(new OverrideRule[0]);
+
+    private final OverrideRule[] rules; // в порядке добавления
+    private final OverrideRule[] byStart; // по возрастанию from
+    private final int[] order; // номер правила byStart[i] в порядке добавления
+    private final int[] maxTo; // наибольший to в поддереве с корнем i
+
+    private OverrideRules(OverrideRule[] rules) {
+        this.rules = rules;
+        Integer[] sorted = new Integer[rules.length];
+        for (int i = 0; i < sorted.length; i++) sorted[i] = i;
+        Arrays.sort(sorted, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int x = OverrideRules.this.rules[a].from, y = OverrideRules.this.rules[b].from;
+                return x < y ? -1 : x > y ? 1 : 0;
+            }
+        });
+        byStart = new OverrideRule[rules.length];
+        order = new int[rules.length];
+        for (int i = 0; i < sorted.length; i++) {
+            byStart[i] = rules[sorted[i]];
+            order[i] = sorted[i];
+        }
+        maxTo = new int[rules.length];
+        build(0, rules.length);
+    }
+
+    /**
+     * @param rule Новое правило
+     * @return Набор с этим правилом (действует поверх прежних). Такое же правило, если было, не дублируется,
+     * а переезжает в конец - так повторное добавление (например, повтор журнала) ничего не меняет.
+     */
+    OverrideRules with(OverrideRule rule) {
+        int same = rules.length;
+        for (int i = 0; i < rules.length; i++)
+            if (rules[i].equals(rule)) same = i;
+        if (same == rules.length - 1) return this;
+        OverrideRule[] result = new OverrideRule[same == rules.length ? rules.length + 1 : rules.length];
+        System.arraycopy(rules, 0, result, 0, same);
+        if (same < rules.length) System.arraycopy(rules, same + 1, result, same, rules.length - same - 1);
+        result[result.length - 1] = rule;
+        return new OverrideRules(result);
+    }
+
+    /** @return Количество правил */
+    int size() {
+        return rules.length;
+    }
+
+    /** @return Правило по порядку добавления */
+    OverrideRule get(int i) {
+        return rules[i];
+    }
+
+    /**
+     * Находит правило, действующее в этот день
+     * @param day Эпохальный день
+     * @return Последнее добавленное из подходящих правил или null
+     */
+    OverrideRule find(int day) {
+        if (rules.length == 0) return null;
+        int best = find(0, rules.length, day, -1);
+        return best < 0 ? null : rules[best];
+    }
+
+    private int find(int low, int high, int day, int best) {
+        if (low >= high) return best;
+        int middle = (low + high) >>> 1;
+        if (maxTo[middle] < day) return best; // всё поддерево закончилось раньше
+        best = find(low, middle, day, best);
+        OverrideRule rule = byStart[middle];
+        if (rule.from > day) return best; // правее начинаются ещё позже
+        if (order[middle] > best && rule.appliesTo(day)) best = order[middle];
+        return find(middle + 1, high, day, best);
+    }
+
+    private int build(int low, int high) {
+        if (low >= high) return Integer.MIN_VALUE;
+        int middle = (low + high) >>> 1;
+        int max = Math.max(byStart[middle].to, Math.max(build(low, middle), build(middle + 1, high)));
+        maxTo[middle] = max;
+        return max;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof OverrideRules && Arrays.equals(rules, ((OverrideRules)o).rules));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(rules);
+    }
+}
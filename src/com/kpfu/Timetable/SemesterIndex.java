@@ -0,0 +1,76 @@
+package com.kpfu.Timetable;
+
+/**
+ * Заранее вычисленное соответствие "день семестра -> уроки дня".
+ * <br>Строится один раз по первому дню и признаку двухнедельности; для каждого дня семестра хранит
+ * ссылку на строку недельной сетки, особый день или день, заданный правилом замены.
+ * Поиск - проверка границ и индекс в массиве.
+ * <br>Изменения расписания обновляют только затронутые дни (см. Timetable).
+ */
+class SemesterIndex {
+
+    /** Длина семестра в днях, которую покрывает индекс (26 недель с сессией) */
+    static final int SEMESTER_DAYS = 26 * 7;
+
+    private final int start; // эпохальный день начала
+    private final Lesson[][] days; // уроки каждого дня; null - уроков нет
+
+    /**
+     * Строит индекс по расписанию
+     * @param timetable Расписание
+     */
+    SemesterIndex(Timetable timetable) {
+        start = timetable.firstDay;
+        days = new Lesson[SEMESTER_DAYS][];
+        for (int i = 0; i < days.length; i++)
+            days[i] = timetable.resolve(start + i);
+    }
+
+    /**
+     * @param day Эпохальный день
+     * @return Покрывает ли индекс этот день?
+     */
+    boolean covers(int day) {
+        return day >= start && day - start < days.length;
+    }
+
+    /**
+     * @param day Эпохальный день (должен быть покрыт индексом)
+     * @return Уроки дня или null
+     */
+    Lesson[] get(int day) {
+        return days[day - start];
+    }
+
+    /**
+     * Обновляет один день, если он покрыт индексом
+     * @param day Эпохальный день
+     * @param lessons Новые уроки дня
+     */
+    void set(int day, Lesson[] lessons) {
+        if (covers(day)) days[day - start] = lessons;
+    }
+
+    /**
+     * Заново вычисляет дни диапазона, покрытые индексом (например, после нового правила замены)
+     * @param timetable Расписание
+     * @param from Первый эпохальный день
+     * @param to Последний эпохальный день (включительно)
+     */
+    void refresh(Timetable timetable, int from, int to) {
+        int low = Math.max(from - start, 0), high = Math.min(to - start, days.length - 1);
+        for (int i = low; i <= high; i++)
+            days[i] = timetable.resolve(start + i);
+    }
+
+    /**
+     * Заново вычисляет все дни, которые берутся из указанной строки недельной сетки
+     * @param timetable Расписание
+     * @param row Номер строки сетки (как в Timetable.lessons)
+     */
+    void refreshRow(Timetable timetable, int row) {
+        for (int i = 0; i < days.length; i++)
+            if (timetable.rowOf(start + i) == row)
+                days[i] = timetable.resolve(start + i);
+    }
+}
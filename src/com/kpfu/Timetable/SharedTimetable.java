@@ -0,0 +1,73 @@
+package com.kpfu.Timetable;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Расписание, которое одновременно читают и правят разные потоки (например, интерфейс и фоновое обновление).
+ * <br>Читатели получают неизменяемый снимок (см. Timetable.freeze) и работают с ним без блокировок.
+ * Писатель правит копию текущего снимка и публикует её целиком, одной атомарной заменой ссылки,
+ * так что читатель видит либо старое расписание, либо новое, но никогда не наполовину изменённое.
+ * <br>Если исходное расписание связано с файлом, каждая новая копия продолжает его журнал правок
+ * (см. Timetable.continueJournal). После передачи сюда исходное расписание больше не правьте.
+ */
+class SharedTimetable {
+
+    /**
+     * Правка расписания
+     */
+    interface Editor {
+        /**
+         * @param draft Изменяемая копия текущего снимка
+         */
+        void edit(Timetable draft);
+    }
+
+    private final AtomicReference<Timetable> current;
+
+    /**
+     * Конструктор
+     * @param timetable Исходное расписание. Само оно не замораживается - публикуется его копия.
+     */
+    SharedTimetable(Timetable timetable) {
+        current = new AtomicReference<Timetable>(snapshot(timetable));
+    }
+
+    /**
+     * @return Текущий снимок расписания (только для чтения)
+     */
+    Timetable get() {
+        return current.get();
+    }
+
+    /**
+     * Применяет правку к копии текущего снимка и публикует результат.
+     * Писатели выполняются по очереди; читателей они не задерживают.
+     * @param editor Правка
+     * @return Новый снимок
+     */
+    synchronized Timetable edit(Editor editor) {
+        Timetable draft = current.get().copy();
+        draft.continueJournal(current.get());
+        editor.edit(draft);
+        draft.freeze();
+        current.set(draft);
+        return draft;
+    }
+
+    /**
+     * Публикует готовое расписание целиком (например, свежезагруженное)
+     * @param timetable Новое расписание. Само оно не замораживается - публикуется его копия.
+     * @return Новый снимок
+     */
+    synchronized Timetable replace(Timetable timetable) {
+        Timetable snapshot = snapshot(timetable);
+        current.set(snapshot);
+        return snapshot;
+    }
+
+    private static Timetable snapshot(Timetable timetable) {
+        Timetable result = timetable.copy();
+        result.continueJournal(timetable);
+        return result.freeze();
+    }
+}
@@ -1,9 +1,10 @@
 package com.kpfu.Timetable;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 /**
@@ -12,16 +13,59 @@ import java.util.Map;
  */
 class Timetable {
 
-    private final int MAX_PER_DAY = 13; // максимальное количество уроков в день + 1
-    private final char SPLIT = (char)30; // разделитель. В нормальном тексте встречаться не должен
+    static final int MAX_PER_DAY = 13; // максимальное количество уроков в день + 1
+    /** Общий пустой день. Им же хранятся все дни без уроков (праздники, пустые строки сетки); менять его нельзя. */
+    static final Lesson[] EMPTY_DAY = new Lesson[MAX_PER_DAY];
+    private static final char SPLIT = (char)30; // разделитель. В нормальном тексте встречаться не должен
+    /** Расширение временных файлов, в которые идёт сохранение (см. tempFile) */
+    static final String TEMP_SUFFIX = ".tmp";
+    private static final int SAVE_BUFFER = 64 * 1024; // файл группы обычно помещается целиком
 
     /** Массив уроков. Запись вида Lessons[2, 3] означает "третий урок второго дня недели".
      * Дни недели начинаются с понедельника, а не с воскресенья, как в Date по умолчанию!
      */
-    private Lesson[][] lessons;
-    private Calendar firstDay; // первый день
-    private boolean doubleWeek; // признак двухнедельности
-    private Map<Calendar, Lesson[]> specialDays; // Особые дни (праздники, например)
+    Lesson[][] lessons;
+    int firstDay; // первый день (см. Dates.epochDay)
+    boolean doubleWeek; // признак двухнедельности
+    DayMap specialDays; // Особые дни (праздники, например), по эпохальному дню. Обход целиком - только после loadAll!
+    private volatile DayBlocks lazy = null; // ещё не прочитанные из файла особые дни (null - прочитаны все)
+    private boolean damaged = false; // был ли повреждён какой-нибудь из дочитанных блоков
+    private OverrideRules rules = OverrideRules.NONE; // правила замены на диапазонах дат (каникулы, переносы)
+    private OverrideJournal journal = null; // журнал правок (null, пока расписание не связано с файлом)
+    private volatile SemesterIndex index = null; // быстрый поиск по дням семестра, строится при первом обращении
+    private boolean frozen = false; // снимок только для чтения (см. freeze)
+    private Listener[] listeners = NO_LISTENERS; // заменяется целиком при подписке/отписке
+    private BellSchedule bells = BellSchedule.KFU; // время уроков; только в памяти, в файл и журнал не пишется
+    private volatile int version = 0; // растёт при каждом изменении дней, первого дня или звонков
+
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
+    // Получатель замеров для всех расписаний. Не volatile: ставится один раз при запуске, а чтение на горячем пути
+    private static TimetableMetrics metrics = TimetableMetrics.NOOP;
+
+    /**
+     * Наблюдатель за изменениями дней расписания (например, LessonIndex).
+     * <br>Вызывается в потоке, который правит расписание, под его блокировкой - долго не задерживайтесь.
+     */
+    interface Listener {
+        /**
+         * Строка недельной сетки заменена
+         * @param timetable Расписание
+         * @param row Номер строки сетки
+         * @param before Прежние уроки (может быть null)
+         * @param after Новые уроки
+         */
+        void rowChanged(Timetable timetable, int row, Lesson[] before, Lesson[] after);
+
+        /**
+         * Особый день записан или удалён
+         * @param timetable Расписание
+         * @param day Эпохальный день
+         * @param before Прежние уроки особого дня (null, если его не было)
+         * @param after Новые уроки (null, если особый день удалён)
+         */
+        void dayChanged(Timetable timetable, int day, Lesson[] before, Lesson[] after);
+    }
 
     /**
      * Конструктор
@@ -31,11 +75,12 @@ class Timetable {
     Timetable(boolean doubleWeek) {
         this.doubleWeek = doubleWeek;
         int days = doubleWeek ? 15 : 8;
-        lessons = new Lesson[days][MAX_PER_DAY];
+        lessons = new Lesson[days][];
+        Arrays.fill(lessons, EMPTY_DAY);
         Calendar now = Calendar.getInstance();
         int month = now.get(Calendar.MONTH) < 9 ? 1 : 9;
-        firstDay = new GregorianCalendar(now.get(Calendar.YEAR), month, 1);
-        specialDays = new HashMap<Calendar, Lesson[]>();
+        firstDay = Dates.epochDay(now.get(Calendar.YEAR), month, 1);
+        specialDays = new DayMap();
     }
 
     /**
@@ -44,42 +89,354 @@ class Timetable {
      * @param firstDay Первый день. Особенно важен для для двухнедельного расписания, для отчёта чётных/нечётных недель.
      */
     Timetable(boolean doubleWeek, Calendar firstDay) {
+        this(doubleWeek, Dates.epochDay(firstDay));
+    }
+
+    /**
+     * Конструктор
+     * @param doubleWeek Является ли расписание двухнедельным?
+     * @param firstDay Первый эпохальный день (см. Dates.epochDay)
+     */
+    Timetable(boolean doubleWeek, int firstDay) {
         this.doubleWeek = doubleWeek;
         int days = doubleWeek ? 15 : 8;
-        lessons = new Lesson[days][MAX_PER_DAY];
+        lessons = new Lesson[days][];
+        Arrays.fill(lessons, EMPTY_DAY);
         this.firstDay = firstDay;
-        specialDays = new HashMap<Calendar, Lesson[]>();
+        specialDays = new DayMap();
     }
 
     /**
      * Возвращает уроки за определённое число
-     * @param date Дата
-     * @return Массив уроков. Если уроков нет, то пустой массив.
+     * @param date Дата (не изменяется; время суток и часовой пояс не учитываются)
+     * @return Массив уроков (не изменять!). Если уроков нет, то общий пустой массив EMPTY_DAY.
      */
     Lesson[] getLessons(Calendar date) {
-        if (specialDays.containsKey(date))
-            return specialDays.get(date);
-        if (date.compareTo(firstDay) < 0)
-            return new Lesson[MAX_PER_DAY];
-        date.setFirstDayOfWeek(Calendar.MONDAY);
-        Lesson[] result;
-        if (!doubleWeek || (date.get(Calendar.WEEK_OF_YEAR) - firstDay.get(Calendar.WEEK_OF_YEAR)) / 2 == 0)
-            result = lessons[date.get(Calendar.DAY_OF_WEEK) - 1];
-        else
-            result = lessons[date.get(Calendar.DAY_OF_WEEK) + 6];
-        if (result == null) return new Lesson[MAX_PER_DAY];
+        Lesson[] result = lessonsOn(Dates.epochDay(date));
+        return result == null ? EMPTY_DAY : result;
+    }
+
+    /**
+     * Возвращает ленивый обход уроков за диапазон дат. Пустые ячейки и дни пропускаются.
+     * @param from Первый эпохальный день (см. Dates.epochDay)
+     * @param to Последний эпохальный день (включительно)
+     * @return Обход уроков
+     */
+    LessonCursor lessonsBetween(int from, int to) {
+        return new LessonCursor(this, from, to);
+    }
+
+    /**
+     * Возвращает уроки за определённый день, ничего не выделяя в памяти
+     * @param day Эпохальный день (см. Dates.epochDay)
+     * @return Массив уроков или null, если уроков в этот день нет
+     */
+    Lesson[] lessonsOn(int day) {
+        TimetableMetrics metrics = Timetable.metrics;
+        if (metrics == TimetableMetrics.NOOP) return find(day);
+        long start = System.nanoTime();
+        Lesson[] result = find(day);
+        metrics.lookup(System.nanoTime() - start, specialDays.containsKey(day) || ruleAt(day) != null);
+        return result;
+    }
+
+    private Lesson[] find(int day) {
+        SemesterIndex index = this.index;
+        if (index == null)
+            index = buildIndex();
+        if (index.covers(day))
+            return index.get(day);
+        return resolve(day);
+    }
+
+    /**
+     * Строит индекс под блокировкой: правка, пришедшая во время построения, иначе не попала бы в новый индекс
+     * @return Индекс (уже построенный другим потоком или новый)
+     */
+    private synchronized SemesterIndex buildIndex() {
+        if (index == null) index = new SemesterIndex(this);
+        return index;
+    }
+
+    /**
+     * Вычисляет уроки дня без индекса: особый день, иначе правило замены, иначе строка недельной сетки
+     * @param day Эпохальный день
+     * @return Массив уроков или null, если уроков в этот день нет
+     */
+    Lesson[] resolve(int day) {
+        Lesson[] result = lazy != null ? fault(day) : specialDays.get(day);
+        if (result != null)
+            return result;
+        return regular(day);
+    }
+
+    /**
+     * Дочитывает из файла блок особых дней, в который попадает день (см. DayBlocks)
+     * @param day Эпохальный день
+     * @return Особый день или null
+     */
+    private synchronized Lesson[] fault(int day) {
+        DayBlocks lazy = this.lazy;
+        if (lazy != null) {
+            lazy.load(day, specialDays);
+            damaged |= lazy.isDamaged();
+            if (lazy.isComplete()) this.lazy = null;
+        }
+        return specialDays.get(day);
+    }
+
+    /**
+     * Дочитывает все ещё не прочитанные из файла особые дни. Нужен перед обходом specialDays целиком.
+     */
+    synchronized void loadAll() {
+        DayBlocks lazy = this.lazy;
+        if (lazy == null) return;
+        lazy.loadAll(specialDays);
+        damaged |= lazy.isDamaged();
+        this.lazy = null;
+    }
+
+    /**
+     * Подключает особые дни, которые будут дочитываться из файла по требованию (см. BinaryFormat)
+     * @param blocks Блоки особых дней
+     */
+    synchronized void attach(DayBlocks blocks) {
+        lazy = blocks;
+    }
+
+    /**
+     * @return Был ли повреждён какой-нибудь из дочитанных блоков особых дней? Дни такого блока идут по сетке.
+     * Чтобы проверить файл целиком, сначала вызовите loadAll. Повреждённое расписание не сохраняется (см. saveAs),
+     * пока не отменены все особые дни (clearSpecialDays).
+     */
+    synchronized boolean isDamaged() {
+        return damaged;
+    }
+
+    /**
+     * Вычисляет уроки дня без учёта особых дней: по правилу замены, иначе по строке недельной сетки
+     * @param day Эпохальный день
+     * @return Массив уроков или null, если уроков в этот день нет
+     */
+    private Lesson[] regular(int day) {
+        OverrideRule rule = rules.find(day);
+        if (rule != null) {
+            if (rule.kind == OverrideRule.CANCEL) return EMPTY_DAY;
+            return rule.row < lessons.length ? lessons[rule.row] : null;
+        }
+        int row = rowOf(day);
+        return row < 0 ? null : lessons[row];
+    }
+
+    /**
+     * @param day Эпохальный день
+     * @return Номер строки недельной сетки для этого дня или -1, если день раньше первого
+     */
+    int rowOf(int day) {
+        if (day < firstDay) return -1;
+        int dayOfWeek = Dates.dayOfWeek(day);
+        if (!doubleWeek) return dayOfWeek;
+        int week = Dates.floorDiv(day - Dates.monday(firstDay), 7);
+        return (week & 1) == 0 ? dayOfWeek : dayOfWeek + 7;
+    }
+
+    /**
+     * Записывает особый день и обновляет индекс. Все изменения особых дней проходят через этот метод.
+     * <br>День заменяется общим экземпляром из LessonPool, так что менять переданный массив после вызова нельзя.
+     * @param day Эпохальный день
+     * @param lessons Уроки дня (MAX_PER_DAY ячеек)
+     */
+    synchronized void putSpecialDay(int day, Lesson[] lessons) {
+        checkMutable();
+        fault(day); // иначе блок, дочитанный позже, вернул бы старый день
+        lessons = LessonPool.SHARED.intern(lessons);
+        Lesson[] before = specialDays.put(day, lessons);
+        version++;
+        SemesterIndex index = this.index;
+        if (index != null) index.set(day, lessons);
+        for (Listener listener : listeners)
+            listener.dayChanged(this, day, before, lessons);
+    }
+
+    /**
+     * Удаляет особый день: он снова берётся из недельной сетки. Как и putSpecialDay, в журнал не пишет.
+     * @param day Эпохальный день
+     */
+    synchronized void removeSpecialDay(int day) {
+        checkMutable();
+        fault(day);
+        Lesson[] before = specialDays.remove(day);
+        if (before == null) return;
+        version++;
+        SemesterIndex index = this.index;
+        if (index != null) index.set(day, regular(day));
+        for (Listener listener : listeners)
+            listener.dayChanged(this, day, before, null);
+    }
+
+    /**
+     * Удаляет все особые дни и возвращает в индекс дни недельной сетки
+     */
+    synchronized void clearSpecialDays() {
+        checkMutable();
+        if (listeners.length > 0) loadAll(); // наблюдатели должны узнать обо всех удалённых днях
+        lazy = null;
+        SemesterIndex index = this.index;
+        if (index != null || listeners.length > 0)
+            for (int i = 0; i < specialDays.capacity(); i++)
+                if (specialDays.isUsed(i)) {
+                    int day = specialDays.keyAt(i);
+                    if (index != null) index.set(day, regular(day));
+                    for (Listener listener : listeners)
+                        listener.dayChanged(this, day, specialDays.valueAt(i), null);
+                }
+        specialDays.clear();
+        damaged = false; // потерянные дни всё равно отменены
+        version++;
+    }
+
+    /** @return Правила замены (неизменяемый набор) */
+    OverrideRules getRules() {
+        return rules;
+    }
+
+    /**
+     * @param day Эпохальный день
+     * @return Правило замены, действующее в этот день (особые дни его перекрывают), или null
+     */
+    OverrideRule ruleAt(int day) {
+        return rules.find(day);
+    }
+
+    /**
+     * Заменяет все правила замены. Как и putSpecialDay, в журнал не пишет.
+     * <br>Наблюдатели не уведомляются: правила проверяются при каждом поиске (см. LessonIndex), а не раскладываются по дням.
+     * @param rules Новые правила
+     */
+    synchronized void setRules(OverrideRules rules) {
+        checkMutable();
+        if (rules.equals(this.rules)) return;
+        this.rules = rules;
+        version++;
+        index = null; // правила могут задеть любые дни; перестроится при следующем обращении
+    }
+
+    /**
+     * Добавляет правило замены поверх прежних (см. OverrideRule). Сколько бы дней оно ни покрывало,
+     * в памяти и в файле занимает одну запись.
+     * <br>Действует правка, сделанная позже: особые дни, которые правило покрывает, удаляются
+     * (иначе они перекрыли бы правило - см. resolve). Особый день, заданный после правила, снова перекрывает его.
+     * @param rule Правило
+     */
+    synchronized void addRule(OverrideRule rule) {
+        checkMutable();
+        OverrideRules rules = this.rules.with(rule);
+        if (rules == this.rules) return;
+        loadAll();
+        int[] covered = new int[specialDays.size()];
+        int count = 0;
+        for (int i = 0; i < specialDays.capacity(); i++)
+            if (specialDays.isUsed(i) && rule.appliesTo(specialDays.keyAt(i))) covered[count++] = specialDays.keyAt(i);
+        for (int i = 0; i < count; i++) {
+            removeSpecialDay(covered[i]);
+            if (journal != null) journal.removeDay(this, covered[i]);
+        }
+        this.rules = rules;
+        version++;
+        SemesterIndex index = this.index;
+        if (index != null) index.refresh(this, rule.from, rule.to);
+        if (journal != null) journal.rule(this, rule);
+    }
+
+    /**
+     * Заменяет все правила замены (например, правилами из новой версии расписания)
+     * @param rules Новые правила
+     */
+    synchronized void replaceRules(OverrideRules rules) {
+        checkMutable();
+        if (rules.equals(this.rules)) return;
+        setRules(rules);
+        if (journal != null) journal.rules(this, rules);
+    }
+
+    /**
+     * Отменяет все правила замены
+     */
+    synchronized void clearRules() {
+        replaceRules(OverrideRules.NONE);
+    }
+
+    /**
+     * Номер версии содержимого: меняется при каждой правке дней, первого дня или звонков.
+     * Позволяет понять, что вычисленное по расписанию (см. LessonQueries) устарело.
+     * @return Номер версии
+     */
+    int version() {
+        return version;
+    }
+
+    /** @return Расписание звонков (по умолчанию - КФУ) */
+    BellSchedule getBells() {
+        return bells;
+    }
+
+    /**
+     * Меняет расписание звонков.
+     * <br>Звонки живут только в памяти: ни файл (BinaryFormat), ни журнал правок, ни TimetableDiff их не хранят,
+     * и загруженное расписание снова идёт по звонкам КФУ. Задавайте их заново после каждой загрузки.
+     * @param bells Расписание звонков
+     */
+    synchronized void setBells(BellSchedule bells) {
+        checkMutable();
+        this.bells = bells;
+        version++;
+    }
+
+    /**
+     * Подписывает наблюдателя на изменения дней. Копии расписания (см. copy) подписку не наследуют.
+     * @param listener Наблюдатель
+     */
+    synchronized void addListener(Listener listener) {
+        Listener[] result = new Listener[listeners.length + 1];
+        System.arraycopy(listeners, 0, result, 0, listeners.length);
+        result[listeners.length] = listener;
+        listeners = result;
+    }
+
+    /**
+     * Отписывает наблюдателя
+     * @param listener Наблюдатель
+     */
+    synchronized void removeListener(Listener listener) {
+        for (int i = 0; i < listeners.length; i++)
+            if (listeners[i] == listener) {
+                Listener[] result = new Listener[listeners.length - 1];
+                System.arraycopy(listeners, 0, result, 0, i);
+                System.arraycopy(listeners, i + 1, result, i, result.length - i);
+                listeners = result;
+                return;
+            }
+    }
+
+    /**
+     * @param day Уроки дня (может быть null)
+     * @return Новый массив из MAX_PER_DAY ячеек с теми же уроками
+     */
+    static Lesson[] copyOf(Lesson[] day) {
+        Lesson[] result = new Lesson[MAX_PER_DAY];
+        if (day != null) System.arraycopy(day, 0, result, 0, Math.min(day.length, MAX_PER_DAY));
         return result;
     }
 
     /**
      * Возвращает уроки для определённого дня недели
      * @param dayOfWeek Номер дня недели. Например, понедельник = 1, среда = 3, понедельник второй недели = 8.
-     * @return Массив уроков. Если уроков нет, то пустой массив.
+     * @return Массив уроков. Если уроков нет, то общий пустой массив EMPTY_DAY.
      */
     Lesson[] getLessons(int dayOfWeek) {
         dayOfWeek = doubleWeek ? (dayOfWeek - 1) % 14 + 1 : (dayOfWeek - 1) % 7 + 1;
         Lesson[] result = lessons[dayOfWeek];
-        if (result == null) return new Lesson[MAX_PER_DAY];
+        if (result == null) return EMPTY_DAY;
         return result;
     }
 
@@ -111,15 +468,35 @@ class Timetable {
      * @param lessons Массив объектов типа Timetable.Lesson
      * @param dayOfWeek Номер дня недели. Например, понедельник = 1, среда = 3, понедельник второй недели = 8.
      */
-    void setLessons(Lesson[] lessons, int dayOfWeek) {
+    synchronized void setLessons(Lesson[] lessons, int dayOfWeek) {
         dayOfWeek = doubleWeek ? (dayOfWeek - 1) % 14 + 1 : (dayOfWeek - 1) % 7 + 1;
-        if (lessons.length == MAX_PER_DAY)
-            this.lessons[dayOfWeek] = lessons;
-        else {
-            Lesson[] align = new Lesson[MAX_PER_DAY];
-            System.arraycopy(lessons, 0, align, 0, Math.min(lessons.length, MAX_PER_DAY));
-            this.lessons[dayOfWeek] = align;
+        setRow(dayOfWeek, copyOf(lessons));
+        if (journal != null) journal.setRow(this, dayOfWeek, this.lessons[dayOfWeek]);
+    }
+
+    /**
+     * Заменяет строку недельной сетки новым массивом и обновляет индекс.
+     * Сами массивы дней после записи не меняются - так их можно безопасно делить со снимками (см. copy)
+     * и с другими расписаниями (см. LessonPool).
+     * @param row Номер строки сетки
+     * @param day Новые уроки (MAX_PER_DAY ячеек)
+     */
+    private void setRow(int row, Lesson[] day) {
+        checkMutable();
+        day = LessonPool.SHARED.intern(day);
+        Lesson[] before = lessons[row];
+        lessons[row] = day;
+        version++;
+        SemesterIndex index = this.index;
+        if (index != null) {
+            index.refreshRow(this, row);
+            for (int i = 0; i < rules.size(); i++) { // перенесённые на эту строку дни
+                OverrideRule rule = rules.get(i);
+                if (rule.kind == OverrideRule.FOLLOW && rule.row == row) index.refresh(this, rule.from, rule.to);
+            }
         }
+        for (Listener listener : listeners)
+            listener.rowChanged(this, row, before, day);
     }
 
     /**
@@ -127,16 +504,43 @@ class Timetable {
      * @param lessons Массив объектов типа Timetable.Lesson
      * @param date Дата
      */
-    void setLessons(Lesson[] lessons, Calendar date) {
-        if (specialDays.containsKey(date))
-            specialDays.remove(date);
-        if (lessons.length == MAX_PER_DAY)
-            specialDays.put(date, lessons);
-        else {
-            Lesson[] align = new Lesson[MAX_PER_DAY];
-            System.arraycopy(lessons, 0, align, 0, Math.min(lessons.length, MAX_PER_DAY));
-            specialDays.put(date, align);
-        }
+    synchronized void setLessons(Lesson[] lessons, Calendar date) {
+        setDay(Dates.epochDay(date), lessons);
+    }
+
+    /**
+     * Устанавливает уроки для определённого дня вместо основных по расписанию
+     * @param day Эпохальный день
+     * @param lessons Массив уроков
+     */
+    synchronized void setDay(int day, Lesson[] lessons) {
+        checkMutable();
+        putSpecialDay(day, copyOf(lessons));
+        if (journal != null) journal.setDay(this, day, lessons);
+    }
+
+    /**
+     * Отменяет особый день: уроки снова идут по недельной сетке
+     * @param day Эпохальный день
+     */
+    synchronized void resetDay(int day) {
+        checkMutable();
+        if (fault(day) == null) return;
+        removeSpecialDay(day);
+        if (journal != null) journal.removeDay(this, day);
+    }
+
+    /**
+     * Меняет первый день расписания (например, с началом нового семестра). Чётность недель считается от него.
+     * @param day Эпохальный день
+     */
+    synchronized void setFirstDay(int day) {
+        checkMutable();
+        if (day == firstDay) return;
+        firstDay = day;
+        version++;
+        index = null; // все дни семестра сдвинулись; перестроится при следующем обращении
+        if (journal != null) journal.firstDay(this, day);
     }
 
     /**
@@ -145,11 +549,14 @@ class Timetable {
      * @param dayOfWeek Номер дня недели. Например, понедельник = 1, среда = 3, понедельник второй недели = 8.
      * @param count Номер урока (от начала дня, начиная с единицы)
      */
-    void setLesson(Lesson lesson, int dayOfWeek, int count) {
+    synchronized void setLesson(Lesson lesson, int dayOfWeek, int count) {
         if (count >= MAX_PER_DAY)
             count = MAX_PER_DAY - 1;
         dayOfWeek = doubleWeek ? (dayOfWeek - 1) % 14 + 1 : (dayOfWeek - 1) % 7 + 1;
-        this.lessons[dayOfWeek][count] = lesson;
+        Lesson[] row = copyOf(this.lessons[dayOfWeek]);
+        row[count] = LessonPool.SHARED.intern(lesson);
+        setRow(dayOfWeek, row);
+        if (journal != null) journal.setRow(this, dayOfWeek, row);
     }
 
     /**
@@ -158,14 +565,15 @@ class Timetable {
      * @param date Дата
      * @param count Номер урока (от начала дня, начиная с единицы)
      */
-    void setLesson(Lesson lesson, Calendar date, int count) {
+    synchronized void setLesson(Lesson lesson, Calendar date, int count) {
+        checkMutable();
         if (count >= MAX_PER_DAY)
             count = MAX_PER_DAY - 1;
-        Lesson[] from = getLessons(date);
-        from[count] = lesson;
-        if (specialDays.containsKey(date))
-            specialDays.remove(date);
-        specialDays.put(date, from);
+        int day = Dates.epochDay(date);
+        Lesson[] from = copyOf(lessonsOn(day)); // копия, чтобы не испортить основное расписание
+        from[count] = LessonPool.SHARED.intern(lesson);
+        putSpecialDay(day, from);
+        if (journal != null) journal.setLesson(this, day, count, lesson);
     }
 
     /**
@@ -179,92 +587,285 @@ class Timetable {
      * Назначение дня праздничным. Все уроки в этот день отменяются.
      * @param holiday Дата выходного дня
      */
-    void addHoliday(Calendar holiday) {
-        if (specialDays.containsKey(holiday))
-            specialDays.remove(holiday);
-        specialDays.put(holiday, new Lesson[MAX_PER_DAY]);
+    synchronized void addHoliday(Calendar holiday) {
+        checkMutable();
+        int day = Dates.epochDay(holiday);
+        putSpecialDay(day, EMPTY_DAY);
+        if (journal != null) journal.holiday(this, day);
+    }
+
+    /**
+     * Назначение праздничными всех дней диапазона (каникулы, сессия). Хранится одним правилом, а не днями.
+     * Особые дни диапазона, назначенные раньше, отменяются (см. addRule).
+     * @param from Первый выходной день
+     * @param to Последний выходной день (включительно)
+     */
+    synchronized void addHolidays(Calendar from, Calendar to) {
+        addRule(OverrideRule.cancel(Dates.epochDay(from), Dates.epochDay(to)));
     }
 
     /**
      * Назначение дня праздничным. Все уроки переносятся на другой день.
+     * <br>Если оба дня идут по недельной сетке, перенос хранится двумя правилами ("в день shift - уроки дня holiday"),
+     * так что более поздние правки сетки переносятся вместе с ним. Иначе уроки копируются в особые дни.
      * @param holiday Дата выходного дня
      * @param shift Дата, на которую переносятся занятия
      */
-    void addHoliday(Calendar holiday, Calendar shift) {
-        if (specialDays.containsKey(shift))
-            specialDays.remove(shift);
-        specialDays.put(shift, getLessons(holiday));
-        if (specialDays.containsKey(holiday))
-            specialDays.remove(holiday);
-        specialDays.put(holiday, new Lesson[MAX_PER_DAY]);
+    synchronized void addHoliday(Calendar holiday, Calendar shift) {
+        checkMutable();
+        int from = Dates.epochDay(holiday);
+        int to = Dates.epochDay(shift);
+        int row = rowOf(from);
+        if (row >= 0 && fault(from) == null && fault(to) == null && rules.find(from) == null) {
+            addRule(OverrideRule.cancel(from, from));
+            addRule(OverrideRule.follow(to, row));
+            return;
+        }
+        Lesson[] moved = copyOf(lessonsOn(from)); // копия: уроки общие, а сам день - свой
+        putSpecialDay(to, moved);
+        putSpecialDay(from, EMPTY_DAY);
+        if (journal != null) { // в журнал пишется результат, а не сам перенос: так повтор безопасен
+            journal.setDay(this, to, moved);
+            journal.holiday(this, from);
+        }
     }
 
     /**
-     * Отменяет все ранее назначенные праздники
+     * Отменяет все ранее назначенные праздники (и особые дни, и правила замены)
      * <br>Подумайте о бедных студентах, прежде чем вызывать этот метод
      */
-    void flushHolidays() { specialDays.clear(); }
+    synchronized void flushHolidays() {
+        checkMutable();
+        clearSpecialDays();
+        setRules(OverrideRules.NONE);
+        if (journal != null) journal.clear(this);
+    }
 
     /**
      * Преобразовывает все записи из некой кодировки в UTF-8
+     * <br>Файлы, загруженные через loadFrom, уже прочитаны в своей кодировке; метод нужен только для данных из других источников.
      * @param currentEncoding Текущая кодировка
      * @throws UnsupportedEncodingException Указанной кодировки не существует (или она не поддерживается)
      */
-    void fixEncoding(String currentEncoding) throws UnsupportedEncodingException {
-        for (Lesson[] day : lessons)
-            for (Lesson lesson : day)
-                if (lesson != null)
-                    lesson.fixEncoding(currentEncoding);
-        for (Lesson[] day : specialDays.values())
-            for (Lesson lesson : day)
-                if (lesson != null)
-                    lesson.fixEncoding(currentEncoding);
+    synchronized void fixEncoding(String currentEncoding) throws UnsupportedEncodingException {
+        checkMutable();
+        // Уроки могут быть общими (см. LessonPool), поэтому каждый перекодируется один раз, в копии
+        Map<Lesson, Lesson> fixed = new IdentityHashMap<Lesson, Lesson>();
+        loadAll();
+        for (int row = 0; row < lessons.length; row++)
+            setRow(row, fixEncoding(lessons[row], fixed, currentEncoding));
+        for (int i = 0; i < specialDays.capacity(); i++) // замена значений по тем же ключам таблицу не перестраивает
+            if (specialDays.isUsed(i))
+                putSpecialDay(specialDays.keyAt(i), fixEncoding(specialDays.valueAt(i), fixed, currentEncoding));
+    }
+
+    private static Lesson[] fixEncoding(Lesson[] day, Map<Lesson, Lesson> fixed, String currentEncoding)
+            throws UnsupportedEncodingException {
+        day = copyOf(day);
+        for (int i = 0; i < day.length; i++) {
+            if (day[i] == null) continue;
+            Lesson lesson = fixed.get(day[i]);
+            if (lesson == null) {
+                lesson = day[i].copy();
+                lesson.fixEncoding(currentEncoding);
+                lesson = LessonPool.SHARED.intern(lesson);
+                fixed.put(day[i], lesson);
+            }
+            day[i] = lesson;
+        }
+        return day;
+    }
+
+    /**
+     * Создаёт изменяемую копию расписания. Массивы дней не копируются, а делятся:
+     * любые правки заменяют их новыми, так что копия и оригинал друг на друга не влияют.
+     * <br>Копия с файлом не связана: её правки не пишутся в журнал оригинала, иначе сворачивание журнала
+     * могло бы записать в файл устаревшую копию. Копия, которая заменяет оригинал, подключается к журналу
+     * через continueJournal (так делает SharedTimetable).
+     * @return Копия
+     */
+    synchronized Timetable copy() {
+        Timetable result = new Timetable(doubleWeek, Dates.toCalendar(firstDay));
+        System.arraycopy(lessons, 0, result.lessons, 0, lessons.length);
+        result.specialDays = specialDays.copy();
+        result.lazy = lazy == null ? null : lazy.copy(); // файл и разобранные таблицы - общие
+        result.damaged = damaged;
+        result.rules = rules; // неизменяемы - можно делить
+        result.bells = bells;
+        result.version = version;
+        return result;
+    }
+
+    /**
+     * Продолжает журнал правок другого расписания: дальнейшие правки этого пишутся в тот же журнал.
+     * <br>Только для копии, которая заменяет оригинал: при сворачивании журнала в файл пишется расписание,
+     * дописавшее последнюю запись (см. OverrideJournal).
+     * @param previous Расписание, которое заменяется этим
+     */
+    void continueJournal(Timetable previous) {
+        OverrideJournal journal;
+        synchronized (previous) {
+            journal = previous.journal;
+        }
+        synchronized (this) {
+            checkMutable();
+            this.journal = journal;
+        }
+    }
+
+    /**
+     * Делает расписание неизменяемым снимком: индекс строится сразу, а любые правки бросают IllegalStateException.
+     * Снимок можно читать из любых потоков без блокировок.
+     * @return Это же расписание
+     */
+    synchronized Timetable freeze() {
+        loadAll(); // снимок читают без блокировок - дочитывать потом нельзя
+        buildIndex();
+        frozen = true;
+        return this;
+    }
+
+    /** @return Является ли расписание неизменяемым снимком? */
+    boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkMutable() {
+        if (frozen) throw new IllegalStateException("Timetable snapshot is read-only");
     }
 
     /**
-     * Сохраняет расписание в файл
+     * Сохраняет расписание в файл (в двоичном формате, см. BinaryFormat)
+     * <br>Запись атомарна: расписание пишется во временный файл рядом, сбрасывается на диск и только потом
+     * переименовывается поверх старого. Если запись прервётся, старый файл останется целым.
+     * <br>После сохранения расписание связывается с файлом: дальнейшие правки дней
+     * дописываются в журнал рядом с ним (см. OverrideJournal), а не переписывают файл целиком.
+     * Неизменяемый снимок (см. freeze) не связывается - править его всё равно нельзя.
+     * <br>Расписание с повреждёнными особыми днями (см. isDamaged) не сохраняется: перезапись сделала бы потерю окончательной.
      * @param filename Имя файла (расширение не обязательно). Номер группы подойдёт.
      * @return Успешно ли сохранение?
      */
-    boolean saveAs(String filename) {
+    synchronized boolean saveAs(String filename) {
+        if (!writeFile(filename)) return false;
+        OverrideJournal journal = this.journal != null && this.journal.isFor(filename)
+                ? this.journal : new OverrideJournal(filename);
+        journal.reset(); // всё, что было в журнале, теперь в основном файле
+        if (!frozen) this.journal = journal;
+        return true;
+    }
+
+    /**
+     * Атомарно записывает расписание в файл, не трогая журнал (см. saveAs)
+     * @param filename Имя файла
+     * @return Успешна ли запись? false и для повреждённого расписания
+     */
+    synchronized boolean writeFile(String filename) {
+        long start = System.nanoTime();
+        loadAll(); // повреждение блока обнаруживается только при чтении
+        if (damaged) {
+            metrics.saveFailed(filename, System.nanoTime() - start);
+            return false;
+        }
+        File target = new File(filename);
+        File temp = null;
         try {
-            FileOutputStream file = new FileOutputStream(filename, false);
-            OutputStreamWriter osw = new OutputStreamWriter(file);
-            osw.append(doubleWeek ? '1' : '0');
-            osw.append(SPLIT);
-            osw.append(Integer.toString(firstDay.get(Calendar.DAY_OF_MONTH))).append(SPLIT);
-            osw.append(Integer.toString(firstDay.get(Calendar.MONTH))).append(SPLIT);
-            osw.append(Integer.toString(firstDay.get(Calendar.YEAR))).append(SPLIT);
-            for (Lesson[] day : lessons)
-                for (Lesson lesson : day) {
-                    lesson.write(osw);
-                    osw.append(SPLIT);
-                }
-            for (Calendar day : specialDays.keySet()) {
-                osw.append(Integer.toString(day.get(Calendar.DAY_OF_MONTH))).append(SPLIT);
-                osw.append(Integer.toString(firstDay.get(Calendar.MONTH))).append(SPLIT);
-                osw.append(Integer.toString(day.get(Calendar.YEAR))).append(SPLIT);
-                for (Lesson lesson : specialDays.get(day)) {
-                    lesson.write(osw);
-                    osw.append(SPLIT);
-                }
+            temp = tempFile(target);
+            FileOutputStream file = new FileOutputStream(temp, false);
+            try {
+                OutputStream out = new BufferedOutputStream(file, SAVE_BUFFER);
+                BinaryFormat.write(this, out);
+                out.flush();
+                file.getChannel().force(true); // данные на диске раньше, чем новое имя
+            } finally {
+                file.close();
+            }
+            if (!temp.renameTo(target)) {
+                // Не POSIX (на Android не бывает): переименование поверх существующего файла запрещено
+                if (!target.delete() || !temp.renameTo(target))
+                    throw new IOException("Cannot replace " + filename);
             }
-            osw.flush();
-            osw.close();
-        } catch (IOException e) {return false;}
+        } catch (IOException e) {
+            if (temp != null) temp.delete();
+            metrics.saveFailed(filename, System.nanoTime() - start);
+            return false;
+        }
+        if (metrics != TimetableMetrics.NOOP)
+            metrics.saved(filename, new File(filename).length(), System.nanoTime() - start);
         return true;
     }
 
     /**
-     * Загружает расписание из файла
+     * Создаёт временный файл для атомарной замены файла target: в той же папке (иначе переименование не атомарно)
+     * и с уникальным именем, так что разные писатели одного файла (например, два расписания, загруженные из него,
+     * или сворачивание журнала одного во время saveAs другого) никогда не пишут в один временный файл.
+     * @param target Заменяемый файл
+     * @return Новый пустой временный файл
+     * @throws IOException Не удалось создать
+     */
+    static File tempFile(File target) throws IOException {
+        return File.createTempFile(target.getName() + ".save", TEMP_SUFFIX, target.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Подключает получателя замеров загрузки, сохранения и поиска для всех расписаний.
+     * Вызывайте один раз при запуске, до работы с расписаниями.
+     * @param metrics Получатель; null - отключить замеры
+     */
+    static void setMetrics(TimetableMetrics metrics) {
+        Timetable.metrics = metrics == null ? TimetableMetrics.NOOP : metrics;
+    }
+
+    /**
+     * Загружает расписание из файла. Формат (двоичный или старый текстовый) определяется автоматически.
+     * <br>Журнал правок, если он есть рядом с файлом, применяется поверх.
      * @param filename Имя файла (расширение не обязательно)
      * @return Экземпляр расписания
      */
     static Timetable loadFrom(String filename) {
+        long start = System.nanoTime();
+        try {
+            File file = new File(filename);
+            byte[] head = new byte[4];
+            FileInputStream stream = new FileInputStream(file);
+            int read;
+            try {
+                read = stream.read(head);
+            } finally {
+                stream.close();
+            }
+            Timetable result;
+            boolean binary = read == head.length && BinaryFormat.isBinary(head);
+            if (binary)
+                result = BinaryFormat.read(file);
+            else
+                result = loadText(file);
+            if (result != null) {
+                OverrideJournal journal = new OverrideJournal(filename);
+                journal.replay(result); // пока журнал не привязан, повтор правок не пишется в него заново
+                result.journal = journal;
+                if (metrics != TimetableMetrics.NOOP)
+                    metrics.loaded(filename, binary, file.length() + journal.length(), System.nanoTime() - start);
+            }
+            else metrics.loadFailed(filename, System.nanoTime() - start);
+            return result;
+        } catch (IOException e) {
+            metrics.loadFailed(filename, System.nanoTime() - start);
+            return null;
+        }
+    }
+
+    /**
+     * Загружает расписание из файла в старом текстовом формате (поля, разделённые SPLIT).
+     * Оставлено для перевода старых файлов групп: после загрузки достаточно вызвать saveAs.
+     * <br>Кодировка (UTF-8, CP1251 или KOI8-R) определяется по началу файла, см. CharsetSniffer.
+     * @param file Файл
+     * @return Экземпляр расписания или null, если формат неверный
+     * @throws IOException Ошибка ввода/вывода
+     */
+    private static Timetable loadText(File file) throws IOException {
+        Reader isr = new BufferedReader(CharsetSniffer.open(new BufferedInputStream(new FileInputStream(file))));
         try {
             boolean doubleWeek;
-            FileInputStream file = new FileInputStream(filename);
-            InputStreamReader isr = new InputStreamReader(file);
             int c = isr.read();
             if (c == -1) return null;
             switch ((char)c) {
@@ -279,37 +880,34 @@ class Timetable {
             }
             Timetable result = new Timetable(doubleWeek);
             c = isr.read();
-            if (c == -1 || (char)c != result.SPLIT) return null; // Неверный формат файла
-            Calendar firstDay = dateFromStream(isr, result.SPLIT);
+            if (c == -1 || (char)c != SPLIT) return null; // Неверный формат файла
+            Calendar firstDay = dateFromStream(isr, SPLIT);
             if (firstDay != null)
-                result.firstDay = firstDay;
-            for (int i = 0; i < result.lessons.length; i++)
-                for (int j = 0; j < result.lessons[0].length; j++)
-                    result.lessons[i][j] = Lesson.read(isr, result.SPLIT);
-            c = isr.read();
-            while (c != -1) {
-                Calendar date = dateFromStream(isr, result.SPLIT);
-                Lesson[] fullDay = new Lesson[result.MAX_PER_DAY];
+                result.firstDay = Dates.epochDay(firstDay);
+            for (int i = 0; i < result.lessons.length; i++) {
+                Lesson[] row = new Lesson[MAX_PER_DAY];
+                for (int j = 0; j < row.length; j++)
+                    row[j] = Lesson.read(isr, SPLIT);
+                result.setRow(i, row);
+            }
+            Calendar date = dateFromStream(isr, SPLIT);
+            while (date != null) {
+                Lesson[] fullDay = new Lesson[MAX_PER_DAY];
                 for (int i = 0; i < fullDay.length; i++)
-                    fullDay[i] = Lesson.read(isr, result.SPLIT);
-                result.specialDays.put(date, fullDay);
-                c = isr.read();
+                    fullDay[i] = Lesson.read(isr, SPLIT);
+                result.putSpecialDay(Dates.epochDay(date), fullDay);
+                date = dateFromStream(isr, SPLIT);
             }
-            isr.close();
             return result;
-        } catch (IOException e) {return null;}
-    }
-
-    private static Calendar dateFromStream(InputStreamReader stream, char split) throws IOException {
-        String day = "";
-        String month = "";
-        String year = "";
-        int c = (stream.read());
-        while (c != -1 && (char)c != split) day += (char)c;
-        c = (stream.read());
-        while (c != -1 && (char)c != split) month += (char)c;
-        c = (stream.read());
-        while (c != -1 && (char)c != split) year += (char)c;
+        } finally {
+            isr.close();
+        }
+    }
+
+    private static Calendar dateFromStream(Reader stream, char split) throws IOException {
+        String day = readToken(stream, split);
+        String month = readToken(stream, split);
+        String year = readToken(stream, split);
         Calendar result;
         try { result = new GregorianCalendar(Integer.parseInt(year),
                 Integer.parseInt(month),
@@ -317,4 +915,14 @@ class Timetable {
         } catch (NumberFormatException e) {return null;}
         return result;
     }
+
+    private static String readToken(Reader stream, char split) throws IOException {
+        StringBuilder token = new StringBuilder();
+        int c = stream.read();
+        while (c != -1 && (char)c != split) {
+            token.append((char)c);
+            c = stream.read();
+        }
+        return token.toString();
+    }
 }
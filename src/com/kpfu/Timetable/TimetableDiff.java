@@ -0,0 +1,252 @@
+package com.kpfu.Timetable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Разница между двумя версиями расписания: какие ячейки сетки, особые дни и правила замены изменились.
+ * <br>Для фонового обновления: вместо всего файла передаётся и применяется только разница.
+ * Применение идёт через обычные правки расписания, так что у связанного с файлом расписания
+ * изменения дописываются в журнал (см. OverrideJournal), а не переписывают файл целиком.
+ * <pre>
+ * Формат (big-endian):
+ *   int   MAGIC ("KTTD")
+ *   short версия формата
+ *   byte  1 - двухнедельное расписание, 0 - однонедельное
+ *   int   количество изменений
+ *   изменения: byte вид, затем
+ *     FIRST_DAY  - int эпохальный день
+ *     SET_SLOT   - byte строка сетки, byte номер урока, урок
+ *     SET_DAY    - int эпохальный день, MAX_PER_DAY уроков
+ *     REMOVE_DAY - int эпохальный день
+ *     SET_RULES  - short количество, правила (см. OverrideRule.write)
+ * Урок записывается как в журнале: маска полей, затем поля (см. OverrideJournal.writeLesson)
+ * </pre>
+ */
+class TimetableDiff {
+
+    static final int MAGIC = 0x4B545444; // "KTTD"
+    static final short VERSION = 2; // 2 - в заголовке двухнедельность
+
+    private static final byte FIRST_DAY = 1;
+    private static final byte SET_SLOT = 2;
+    private static final byte SET_DAY = 3;
+    private static final byte REMOVE_DAY = 4;
+    private static final byte SET_RULES = 5; // правил мало - при любом отличии передаются все
+
+    /** Одно изменение */
+    private static class Change {
+        final byte kind;
+        final int day; // эпохальный день или строка сетки (SET_SLOT)
+        final int slot;
+        final Lesson[] lessons; // для SET_SLOT - один урок
+        final OverrideRules rules; // для SET_RULES
+
+        Change(byte kind, int day, int slot, Lesson[] lessons) {
+            this.kind = kind;
+            this.day = day;
+            this.slot = slot;
+            this.lessons = lessons;
+            this.rules = null;
+        }
+
+        Change(OverrideRules rules) {
+            this.kind = SET_RULES;
+            this.day = 0;
+            this.slot = 0;
+            this.lessons = null;
+            this.rules = rules;
+        }
+    }
+
+    private final boolean doubleWeek; // сетка, с которой снималась разница
+    private final ArrayList<Change> changes = new ArrayList<Change>();
+
+    private TimetableDiff(boolean doubleWeek) {
+        this.doubleWeek = doubleWeek;
+    }
+
+    /**
+     * Сравнивает две версии расписания ячейка за ячейкой и особый день за особым днём
+     * @param from Старая версия (например, локальная)
+     * @param to Новая версия (например, с сервера)
+     * @return Разница или null, если версии несравнимы (разная двухнедельность) и нужна полная замена
+     */
+    static TimetableDiff diff(Timetable from, Timetable to) {
+        if (from.doubleWeek != to.doubleWeek || from.lessons.length != to.lessons.length) return null;
+        TimetableDiff result = new TimetableDiff(to.doubleWeek);
+        if (from.firstDay != to.firstDay)
+            result.changes.add(new Change(FIRST_DAY, to.firstDay, 0, null));
+        for (int row = 0; row < from.lessons.length; row++) {
+            Lesson[] a = from.lessons[row], b = to.lessons[row];
+            if (a == b) continue; // общий массив - строки не менялись
+            for (int slot = 0; slot < Timetable.MAX_PER_DAY; slot++) {
+                Lesson x = a == null || slot >= a.length ? null : a[slot];
+                Lesson y = b == null || slot >= b.length ? null : b[slot];
+                if (x == null ? y != null : !x.equals(y))
+                    result.changes.add(new Change(SET_SLOT, row, slot, new Lesson[] {y}));
+            }
+        }
+        from.loadAll();
+        to.loadAll();
+        DayMap old = from.specialDays, now = to.specialDays;
+        for (int i = 0; i < now.capacity(); i++)
+            if (now.isUsed(i)) {
+                Lesson[] before = old.get(now.keyAt(i)), after = now.valueAt(i);
+                if (before != after && (before == null || !Arrays.equals(before, after)))
+                    result.changes.add(new Change(SET_DAY, now.keyAt(i), 0, after));
+            }
+        for (int i = 0; i < old.capacity(); i++)
+            if (old.isUsed(i) && !now.containsKey(old.keyAt(i)))
+                result.changes.add(new Change(REMOVE_DAY, old.keyAt(i), 0, null));
+        if (!from.getRules().equals(to.getRules()))
+            result.changes.add(new Change(to.getRules()));
+        return result;
+    }
+
+    /** @return Нет ли изменений? */
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /** @return Количество изменений */
+    int size() {
+        return changes.size();
+    }
+
+    /**
+     * Применяет разницу к расписанию. Изменения одной строки сетки применяются одной заменой строки.
+     * <br>Разница, снятая с сетки другой формы (одно- и двухнедельной), не применяется вовсе - нужна полная замена.
+     * @param timetable Расписание (старая версия, с которой снималась разница)
+     * @return Применена ли разница? false - расписание не изменено
+     */
+    boolean apply(Timetable timetable) {
+        synchronized (timetable) { // читатели увидят либо старое, либо новое состояние каждой строки
+            if (!fits(timetable)) return false;
+            int i = 0;
+            while (i < changes.size()) {
+                Change change = changes.get(i);
+                switch (change.kind) {
+                    case FIRST_DAY:
+                        timetable.setFirstDay(change.day);
+                        i++;
+                        break;
+                    case SET_SLOT:
+                        Lesson[] row = Timetable.copyOf(timetable.lessons[change.day]);
+                        while (i < changes.size() && changes.get(i).kind == SET_SLOT && changes.get(i).day == change.day) {
+                            row[changes.get(i).slot] = changes.get(i).lessons[0];
+                            i++;
+                        }
+                        timetable.setLessons(row, change.day);
+                        break;
+                    case SET_DAY:
+                        timetable.setDay(change.day, change.lessons);
+                        i++;
+                        break;
+                    case SET_RULES:
+                        timetable.replaceRules(change.rules);
+                        i++;
+                        break;
+                    default: // REMOVE_DAY
+                        timetable.resetDay(change.day);
+                        i++;
+                        break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** @return Подходит ли разница к сетке расписания? */
+    private boolean fits(Timetable timetable) {
+        if (timetable.doubleWeek != doubleWeek) return false;
+        for (Change change : changes)
+            if (change.kind == SET_SLOT && change.day >= timetable.lessons.length) return false;
+        return true;
+    }
+
+    /**
+     * Записывает разницу в поток
+     * @param stream Поток. Не закрывается.
+     * @throws IOException Ошибка ввода/вывода
+     */
+    void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeBoolean(doubleWeek);
+        out.writeInt(changes.size());
+        for (Change change : changes) {
+            out.writeByte(change.kind);
+            switch (change.kind) {
+                case SET_SLOT:
+                    out.writeByte(change.day);
+                    out.writeByte(change.slot);
+                    OverrideJournal.writeLesson(out, change.lessons[0]);
+                    break;
+                case SET_DAY:
+                    out.writeInt(change.day);
+                    for (int i = 0; i < Timetable.MAX_PER_DAY; i++)
+                        OverrideJournal.writeLesson(out, i < change.lessons.length ? change.lessons[i] : null);
+                    break;
+                case SET_RULES:
+                    out.writeShort(change.rules.size());
+                    for (int i = 0; i < change.rules.size(); i++)
+                        change.rules.get(i).write(out);
+                    break;
+                default: // FIRST_DAY, REMOVE_DAY
+                    out.writeInt(change.day);
+                    break;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Читает разницу из потока
+     * @param stream Поток. Не закрывается.
+     * @return Разница или null, если формат неверный
+     * @throws IOException Ошибка ввода/вывода
+     */
+    static TimetableDiff read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC || in.readShort() != VERSION) return null;
+        boolean doubleWeek = in.readBoolean();
+        int rows = doubleWeek ? 15 : 8;
+        int count = in.readInt();
+        if (count < 0) return null;
+        TimetableDiff result = new TimetableDiff(doubleWeek);
+        for (int n = 0; n < count; n++) {
+            byte kind = in.readByte();
+            switch (kind) {
+                case SET_SLOT:
+                    int row = in.readUnsignedByte();
+                    int slot = in.readUnsignedByte();
+                    if (row >= rows || slot >= Timetable.MAX_PER_DAY) return null;
+                    result.changes.add(new Change(kind, row, slot, new Lesson[] {OverrideJournal.readLesson(in)}));
+                    break;
+                case SET_DAY:
+                    int day = in.readInt();
+                    Lesson[] lessons = new Lesson[Timetable.MAX_PER_DAY];
+                    for (int i = 0; i < lessons.length; i++)
+                        lessons[i] = OverrideJournal.readLesson(in);
+                    result.changes.add(new Change(kind, day, 0, lessons));
+                    break;
+                case SET_RULES:
+                    OverrideRules rules = OverrideRules.NONE;
+                    for (int i = in.readUnsignedShort(); i > 0; i--)
+                        rules = rules.with(OverrideRule.read(in));
+                    result.changes.add(new Change(rules));
+                    break;
+                case FIRST_DAY:
+                case REMOVE_DAY:
+                    result.changes.add(new Change(kind, in.readInt(), 0, null));
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,98 @@
+package com.kpfu.Timetable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Фоновая загрузка расписания с постепенной подготовкой дней к показу.
+ * <br>Сначала готовятся сегодняшний и несколько следующих дней, затем остальные дни окна - порциями.
+ * Обратные вызовы приходят в потоке загрузчика: переносить их в поток интерфейса - забота вызывающего.
+ * <br>Не зависит от Android, поэтому проверяется без устройства.
+ */
+class TimetableLoader {
+
+    /**
+     * Получатель результатов загрузки
+     */
+    interface Callback {
+        /**
+         * Расписание загружено
+         * @param timetable Расписание
+         */
+        void onLoaded(Timetable timetable);
+
+        /**
+         * Готова очередная порция дней. Дни внутри порции идут по возрастанию даты,
+         * но порции могут идти не по порядку (сначала сегодняшние, потом остальные).
+         * @param days Дни порции
+         */
+        void onDays(List<DayModel> days);
+
+        /**
+         * Загрузить расписание не удалось
+         */
+        void onFailed();
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * Конструктор
+     * @param executor Исполнитель фоновых задач
+     */
+    TimetableLoader(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Запускает загрузку
+     * @param source Откуда взять расписание (например, Timetable.loadFrom)
+     * @param today Эпохальный день, вокруг которого строится окно
+     * @param lower Сколько дней до сегодняшнего показывать (отрицательное число)
+     * @param upper Сколько дней после сегодняшнего показывать
+     * @param portion По сколько дней готовить за раз; первой идёт порция, начинающаяся с сегодняшнего дня
+     * @param callback Получатель результатов
+     * @return Задача; её можно отменить, если результат больше не нужен
+     */
+    Future<?> load(final Callable<Timetable> source, final int today, final int lower, final int upper,
+                   final int portion, final Callback callback) {
+        return executor.submit(new Runnable() {
+            public void run() {
+                Timetable timetable;
+                try {
+                    timetable = source.call();
+                } catch (Exception e) {
+                    timetable = null;
+                }
+                if (timetable == null) {
+                    callback.onFailed();
+                    return;
+                }
+                callback.onLoaded(timetable);
+                // Сначала сегодняшний и следующие дни, потом остаток будущего, потом прошлое
+                int first = Math.min(today + portion - 1, today + upper);
+                if (!deliver(timetable, today, first, callback)) return;
+                for (int from = first + 1; from <= today + upper; from += portion)
+                    if (!deliver(timetable, from, Math.min(from + portion - 1, today + upper), callback)) return;
+                for (int to = today - 1; to >= today + lower; to -= portion)
+                    if (!deliver(timetable, Math.max(to - portion + 1, today + lower), to, callback)) return;
+            }
+        });
+    }
+
+    /**
+     * Готовит дни из диапазона и передаёт их получателю
+     * @return Продолжать ли загрузку (false, если задачу отменили)
+     */
+    private static boolean deliver(Timetable timetable, int from, int to, Callback callback) {
+        if (Thread.currentThread().isInterrupted()) return false;
+        List<DayModel> days = new ArrayList<DayModel>(to - from + 1);
+        for (int day = from; day <= to; day++)
+            days.add(DayModel.of(timetable, day));
+        callback.onDays(days);
+        return true;
+    }
+}
@@ -0,0 +1,58 @@
+package com.kpfu.Timetable;
+
+/**
+ * Получатель замеров работы расписаний: загрузка, сохранение, поиск уроков дня.
+ * <br>Подключается через Timetable.setMetrics. По умолчанию стоит NOOP: пока он подключён,
+ * расписание даже не засекает время, так что выключенные замеры ничего не стоят.
+ * <br>Методы вызываются из разных потоков и на горячем пути (lookup), поэтому должны быть быстрыми.
+ * Готовая реализация - MetricsRecorder.
+ */
+interface TimetableMetrics {
+
+    /** Ничего не делающий получатель */
+    TimetableMetrics NOOP = new TimetableMetrics() {
+        public void loaded(String filename, boolean binary, long bytes, long nanos) { }
+        public void loadFailed(String filename, long nanos) { }
+        public void saved(String filename, long bytes, long nanos) { }
+        public void saveFailed(String filename, long nanos) { }
+        public void lookup(long nanos, boolean special) { }
+    };
+
+    /**
+     * Расписание загружено
+     * @param filename Имя файла
+     * @param binary Двоичный ли формат (иначе старый текстовый)
+     * @param bytes Сколько байт прочитано (файл и журнал)
+     * @param nanos Сколько длилась загрузка
+     */
+    void loaded(String filename, boolean binary, long bytes, long nanos);
+
+    /**
+     * Загрузить расписание не удалось
+     * @param filename Имя файла
+     * @param nanos Сколько длилась попытка
+     */
+    void loadFailed(String filename, long nanos);
+
+    /**
+     * Расписание сохранено
+     * @param filename Имя файла
+     * @param bytes Размер записанного файла
+     * @param nanos Сколько длилось сохранение
+     */
+    void saved(String filename, long bytes, long nanos);
+
+    /**
+     * Сохранить расписание не удалось
+     * @param filename Имя файла
+     * @param nanos Сколько длилась попытка
+     */
+    void saveFailed(String filename, long nanos);
+
+    /**
+     * Найдены уроки дня (Timetable.lessonsOn и всё, что через него работает)
+     * @param nanos Сколько длился поиск
+     * @param special Пришёлся ли день на особый день или правило замены (иначе - на недельную сетку)
+     */
+    void lookup(long nanos, boolean special);
+}
@@ -0,0 +1,207 @@
+package com.kpfu.Timetable;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Хранилище расписаний многих групп с загрузкой по требованию.
+ * <br>Загруженные расписания держатся в кэше, ограниченном по оценке занимаемой памяти (см. Footprint):
+ * при переполнении вытесняются те, к которым дольше всего не обращались.
+ * <br>Одновременные запросы одной и той же группы приводят к единственной загрузке файла: в кэш сразу кладётся
+ * задача загрузки, и все запросы ждут её. Неудачная загрузка и загрузка, во время которой группу сбросили
+ * (invalidate, clear), в кэше не остаются.
+ * <br>Расписание из файла версии 5 дочитывает особые дни по требованию (см. DayBlocks), так что его вес
+ * пересчитывается при обращении, если особых дней стало больше.
+ */
+class TimetableRepository {
+
+    private final File directory; // папка с файлами групп
+    private final long maxBytes; // предел суммарного веса кэша
+    private long weight = 0; // текущий суммарный вес кэша
+
+    // Порядок доступа: первым идёт самое давно использованное расписание. Загружаемые лежат здесь же.
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Конструктор
+     * @param directory Папка, в которой лежат файлы групп (имя файла - номер группы)
+     * @param maxBytes Предел памяти под кэш в байтах (по оценке Footprint)
+     */
+    TimetableRepository(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Возвращает расписание группы, при необходимости загружая его из файла
+     * @param group Номер группы
+     * @return Расписание или null, если загрузить его не удалось
+     */
+    Timetable get(final String group) {
+        Entry entry;
+        Timetable cached = null;
+        boolean owner = false;
+        synchronized (cache) {
+            entry = cache.get(group);
+            if (entry == null) {
+                entry = new Entry(new FutureTask<Timetable>(new Callable<Timetable>() {
+                    public Timetable call() {
+                        return load(group);
+                    }
+                }));
+                cache.put(group, entry);
+                owner = true;
+            } else cached = entry.timetable;
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            reweigh(group, entry, cached);
+            return cached;
+        }
+        misses.incrementAndGet();
+        if (!owner) return result(entry.task); // загружает другой поток - ждём его результат
+        entry.task.run();
+        Timetable timetable = result(entry.task);
+        long size = timetable == null ? 0 : Footprint.measure(timetable).bytes;
+        synchronized (cache) {
+            if (cache.get(group) != entry) return timetable; // сброшено во время загрузки - в кэш не возвращаем
+            if (timetable == null) {
+                cache.remove(group); // неудача не запоминается: следующий запрос попробует снова
+                return null;
+            }
+            entry.timetable = timetable;
+            entry.days = timetable.specialDays.size();
+            resize(entry, size);
+        }
+        return timetable;
+    }
+
+    /**
+     * Убирает расписание группы из кэша (например, если файл обновился).
+     * Идущая сейчас загрузка этой группы в кэш уже не попадёт.
+     * @param group Номер группы
+     */
+    void invalidate(String group) {
+        synchronized (cache) {
+            Entry entry = cache.remove(group);
+            if (entry != null) weight -= entry.weight;
+        }
+    }
+
+    /** Очищает кэш */
+    void clear() {
+        synchronized (cache) {
+            cache.clear();
+            weight = 0;
+        }
+    }
+
+    /** @return Количество обращений, обслуженных из кэша */
+    long hits() { return hits.get(); }
+
+    /** @return Количество обращений, не нашедших расписание в кэше */
+    long misses() { return misses.get(); }
+
+    /** @return Количество фактических загрузок файлов */
+    long loads() { return loads.get(); }
+
+    /** @return Количество неудачных загрузок */
+    long failures() { return failures.get(); }
+
+    /** @return Количество вытесненных из кэша расписаний */
+    long evictions() { return evictions.get(); }
+
+    /** @return Текущий суммарный вес кэша в байтах */
+    long weight() {
+        synchronized (cache) {
+            return weight;
+        }
+    }
+
+    /** @return Количество расписаний в кэше (без загружаемых) */
+    int size() {
+        synchronized (cache) {
+            int result = 0;
+            for (Entry entry : cache.values())
+                if (entry.timetable != null) result++;
+            return result;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits() + ", misses=" + misses() + ", loads=" + loads() + ", failures=" + failures()
+                + ", evictions=" + evictions() + ", size=" + size() + ", weight=" + weight() + "/" + maxBytes;
+    }
+
+    private Timetable load(String group) {
+        loads.incrementAndGet();
+        Timetable timetable = Timetable.loadFrom(new File(directory, group).getPath());
+        if (timetable == null) failures.incrementAndGet();
+        return timetable;
+    }
+
+    private static Timetable result(Future<Timetable> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Пересчитывает вес расписания, если с прошлого раза оно дочитало или получило новые особые дни
+     */
+    private void reweigh(String group, Entry entry, Timetable timetable) {
+        int days = timetable.specialDays.size();
+        if (days == entry.days) return;
+        long size = Footprint.measure(timetable).bytes; // вне блокировки кэша: меряется под блокировкой расписания
+        synchronized (cache) {
+            if (cache.get(group) != entry) return;
+            entry.days = days;
+            resize(entry, size);
+        }
+    }
+
+    /**
+     * Записывает новый вес расписания и вытесняет самые давние, если кэш переполнился.
+     * Само это расписание остаётся, даже если оно одно больше предела; загружаемые не вытесняются.
+     * Вызывается под блокировкой кэша.
+     */
+    private void resize(Entry entry, long size) {
+        weight += size - entry.weight;
+        entry.weight = size;
+        Iterator<Entry> eldest = cache.values().iterator();
+        while (weight > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            if (evicted == entry || evicted.timetable == null) continue;
+            eldest.remove();
+            weight -= evicted.weight;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /** Запись кэша: задача загрузки, а после неё - расписание и его вес */
+    private static class Entry {
+        final FutureTask<Timetable> task;
+        Timetable timetable = null; // null, пока идёт загрузка
+        long weight = 0;
+        volatile int days; // особых дней в памяти при последнем взвешивании
+
+        Entry(FutureTask<Timetable> task) {
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.kpfu.Timetable;
+
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Проверки LessonIndex: поиск идёт одновременно с правками расписаний и не зависит от языка устройства.
+ * <br>Запуск: ant -f tests/build.xml. При первой же несовпавшей проверке программа завершается с ошибкой.
+ */
+class LessonIndexTest {
+
+    private static final long RACE_MILLIS = 2000; // сколько гонять поиск вместе с правками
+
+    private static int passed = 0;
+
+    public static void main(String[] args) throws Exception {
+        findWhileEditing();
+        turkishLocale();
+        System.out.println("LessonIndexTest: " + passed + " проверок пройдено");
+    }
+
+    /** Поиск, пока другой поток назначает и отменяет особые дни с тем же преподавателем */
+    private static void findWhileEditing() throws InterruptedException {
+        final Timetable timetable = timetable();
+        timetable.addListener(new Timetable.Listener() { // раньше индекса: день уже убран, а индекс ещё не знает
+            public void rowChanged(Timetable timetable, int row, Lesson[] before, Lesson[] after) { }
+
+            public void dayChanged(Timetable timetable, int day, Lesson[] before, Lesson[] after) {
+                try {
+                    Thread.sleep(1); // окно, в которое поиск и видел бы убранный день
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final LessonIndex index = new LessonIndex();
+        index.add("09-101", timetable);
+        final int first = timetable.firstDay;
+        final Lesson extra = new Lesson("Консультация", "Конс.", "УЛК-2", "410", "Иванов И. И.", null, null);
+        final long until = System.currentTimeMillis() + RACE_MILLIS;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread editor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; System.currentTimeMillis() < until; i++) {
+                        int day = first + (i / 2) % 60; // назначается и тут же отменяется
+                        if (i % 2 == 0) timetable.setDay(day, new Lesson[] {extra});
+                        else timetable.resetDay(day);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+        editor.start();
+        int searches = 0;
+        try {
+            while (System.currentTimeMillis() < until) {
+                List<LessonIndex.Occurrence> found = index.find(LessonIndex.TEACHER, "иванов и. и.", first, first + 59);
+                for (LessonIndex.Occurrence occurrence : found)
+                    if (occurrence.lesson == null || !"Иванов И. И.".equals(occurrence.lesson.teacher))
+                        throw new AssertionError("чужой урок " + DayModel.dateLabel(occurrence.day));
+                searches++;
+            }
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+        editor.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        check(searches > 0, "поиск во время правок без ошибок (" + searches + " поисков)");
+        // после правок индекс совпадает с расписанием
+        for (int day = first; day < first + 60; day++)
+            timetable.resetDay(day);
+        int weekly = 0;
+        for (int day = first; day < first + 60; day++) {
+            Lesson[] lessons = timetable.lessonsOn(day);
+            if (lessons != null && lessons[0] != null) weekly++;
+        }
+        check(index.find(LessonIndex.TEACHER, "Иванов И. И.", first, first + 59).size() == weekly, "индекс согласован после правок");
+    }
+
+    /** Ключи не зависят от языка: при турецком "I" в нижнем регистре - не "i" */
+    private static void turkishLocale() {
+        Locale before = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            Timetable timetable = timetable();
+            timetable.setLessons(new Lesson[] {new Lesson("Физика", null, "ULK-2", "I-201", null, null, null)}, 2);
+            LessonIndex index = new LessonIndex();
+            index.add("09-101", timetable);
+            check(index.postings(LessonIndex.ROOM, "i-201").size() == 1, "аудитория I-201 находится как i-201");
+        } finally {
+            Locale.setDefault(before);
+        }
+    }
+
+    private static Timetable timetable() {
+        Timetable result = new Timetable(false, new GregorianCalendar(2026, 8, 1));
+        Lesson math = new Lesson("Математический анализ", "Матан", "УЛК-2", "410", "Иванов И. И.", "лекция", null);
+        result.setLessons(new Lesson[] {math}, 1);
+        result.setLessons(new Lesson[] {math}, 4);
+        return result;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+        passed++;
+    }
+}
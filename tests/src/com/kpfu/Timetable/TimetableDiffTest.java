@@ -0,0 +1,171 @@
+package com.kpfu.Timetable;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+
+/**
+ * Проверки TimetableDiff: разница снимается, передаётся и применяется так, что локальное расписание
+ * и его файл совпадают с новой версией.
+ * <br>Вместо сервера - второе расписание в том же процессе; разница передаётся через память или локальный файл.
+ * <br>Запуск: ant -f tests/build.xml. При первой же несовпавшей проверке программа завершается с ошибкой.
+ */
+class TimetableDiffTest {
+
+    private static final int SPAN = 200; // сколько дней от начала семестра сверяется
+
+    private static File dir;
+    private static int passed = 0;
+
+    public static void main(String[] args) throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "timetable-diff-test-" + System.nanoTime());
+        if (!dir.mkdirs()) throw new IOException("не удалось создать " + dir);
+        try {
+            throughMemory();
+            throughFile();
+            emptyDiff();
+            shapeMismatch();
+            foreignRowRejected();
+            damagedPatch();
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+        System.out.println("TimetableDiffTest: " + passed + " проверок пройдено");
+    }
+
+    /** Разница передаётся через память: применяется и попадает в журнал локального файла */
+    private static void throughMemory() throws IOException {
+        String local = path("memory");
+        check(local(false).saveAs(local), "сохранение локального файла");
+        Timetable remote = edited(Timetable.loadFrom(local).copy()); // копия не связана с файлом
+        Timetable mine = Timetable.loadFrom(local);
+        TimetableDiff diff = TimetableDiff.diff(mine, remote);
+        check(diff != null && !diff.isEmpty(), "разница найдена");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        diff.write(bytes);
+        TimetableDiff received = TimetableDiff.read(new ByteArrayInputStream(bytes.toByteArray()));
+        check(received != null && received.size() == diff.size(), "разница прочитана целиком");
+        check(received.apply(mine), "разница применена");
+        checkSame(mine, remote, "после применения");
+        check(new File(local + ".journal").length() > 0, "изменения дописаны в журнал");
+        checkSame(Timetable.loadFrom(local), remote, "после перезагрузки файла");
+    }
+
+    /** Разница передаётся через файл, расписание двухнедельное: меняются строки обеих недель */
+    private static void throughFile() throws IOException {
+        String local = path("file");
+        check(local(true).saveAs(local), "сохранение локального файла");
+        Timetable remote = edited(Timetable.loadFrom(local).copy()); // копия не связана с файлом
+        remote.setLesson(new Lesson("Вторая неделя"), 12, 1);
+        File patch = new File(path("file.patch"));
+        FileOutputStream out = new FileOutputStream(patch);
+        try {
+            TimetableDiff.diff(Timetable.loadFrom(local), remote).write(out);
+        } finally {
+            out.close();
+        }
+        check(patch.length() < new File(local).length(), "разница короче файла");
+        Timetable mine = Timetable.loadFrom(local);
+        FileInputStream in = new FileInputStream(patch);
+        try {
+            check(TimetableDiff.read(in).apply(mine), "разница из файла применена");
+        } finally {
+            in.close();
+        }
+        checkSame(mine, remote, "после применения");
+        checkSame(Timetable.loadFrom(local), remote, "после перезагрузки файла");
+    }
+
+    /** Одинаковые версии - пустая разница */
+    private static void emptyDiff() {
+        Timetable timetable = local(true);
+        check(TimetableDiff.diff(timetable, timetable.copy()).isEmpty(), "у одинаковых версий нет разницы");
+    }
+
+    /** Разница между сетками разной формы не снимается и не применяется */
+    private static void shapeMismatch() {
+        Timetable single = local(false), pair = local(true);
+        check(TimetableDiff.diff(single, pair) == null, "diff одно- и двухнедельного - null");
+        Timetable changed = pair.copy();
+        changed.setLesson(new Lesson("Вторая неделя"), 10, 0);
+        TimetableDiff diff = TimetableDiff.diff(pair, changed);
+        Timetable target = local(false);
+        check(!diff.apply(target), "двухнедельная разница к однонедельному расписанию не применяется");
+        checkSame(target, local(false), "расписание не изменено");
+    }
+
+    /** Строка второй недели в однонедельной разнице отвергается при чтении */
+    private static void foreignRowRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(TimetableDiff.MAGIC);
+        out.writeShort(TimetableDiff.VERSION);
+        out.writeBoolean(false);
+        out.writeInt(1);
+        out.writeByte(2); // SET_SLOT
+        out.writeByte(9);
+        out.writeByte(0);
+        OverrideJournal.writeLesson(out, new Lesson("Лишний"));
+        check(TimetableDiff.read(new ByteArrayInputStream(bytes.toByteArray())) == null, "строка 9 однонедельной разницы отвергнута");
+    }
+
+    /** Чужие или обрезанные данные не принимаются за разницу */
+    private static void damagedPatch() throws IOException {
+        Timetable timetable = local(false);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TimetableDiff.diff(timetable, edited(timetable.copy())).write(bytes);
+        byte[] data = bytes.toByteArray();
+        data[0] ^= 1;
+        check(TimetableDiff.read(new ByteArrayInputStream(data)) == null, "неверный MAGIC отвергнут");
+        data[0] ^= 1;
+        try {
+            TimetableDiff.read(new ByteArrayInputStream(Arrays.copyOf(data, data.length / 2)));
+            check(false, "обрезанная разница отвергнута");
+        } catch (EOFException e) {
+            passed++;
+        }
+    }
+
+    /** @return Локальная версия расписания */
+    private static Timetable local(boolean doubleWeek) {
+        Timetable result = new Timetable(doubleWeek, new GregorianCalendar(2026, 8, 1));
+        Lesson math = new Lesson("Математический анализ", "Матан", "УЛК-2", "410", "Иванов И. И.", "лекция", null);
+        Lesson prog = new Lesson("Программирование", "Прог.", "УЛК-2", "405", "Петров П. П.", "лабораторная", null);
+        result.setLessons(new Lesson[] {math, prog}, 1);
+        result.setLessons(new Lesson[] {null, prog, prog}, 3);
+        result.setLessons(new Lesson[] {math}, 5);
+        if (doubleWeek) result.setLessons(new Lesson[] {prog, math}, 8);
+        result.setDay(result.firstDay + 20, new Lesson[] {new Lesson("Коллоквиум")});
+        result.setDay(result.firstDay + 30, new Lesson[] {new Lesson("Контрольная")});
+        return result;
+    }
+
+    /** @return То же расписание после правок "на сервере": ячейки, особые дни, правила и начало семестра */
+    private static Timetable edited(Timetable timetable) {
+        timetable.setLesson(new Lesson("Физика", "Физ.", "УЛК-1", "201", "Сидоров С. С.", "семинар", null), 3, 4);
+        timetable.setLesson(null, 1, 0);
+        timetable.setDay(timetable.firstDay + 45, new Lesson[] {null, new Lesson("Зачёт")});
+        timetable.resetDay(timetable.firstDay + 20);
+        timetable.addRule(OverrideRule.cancel(timetable.firstDay + 60, timetable.firstDay + 66));
+        timetable.setFirstDay(timetable.firstDay + 7);
+        return timetable;
+    }
+
+    private static void checkSame(Timetable actual, Timetable expected, String what) {
+        check(actual.firstDay == expected.firstDay, what + ": начало семестра");
+        check(actual.getRules().equals(expected.getRules()), what + ": правила");
+        for (int day = expected.firstDay - 7; day < expected.firstDay + SPAN; day++)
+            check(Arrays.equals(actual.lessonsOn(day), expected.lessonsOn(day)), what + ": " + DayModel.dateLabel(day));
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+        passed++;
+    }
+
+    private static String path(String name) {
+        return new File(dir, name).getPath();
+    }
+}